@@ -0,0 +1,54 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter. Each consecutive failure doubles the
+ * delay up to a maximum, and half of each delay is randomised so that feeds
+ * failing together don't retry in lockstep.
+ */
+public class Backoff {
+
+    private static final Random sRandom = new Random();
+
+    private long mBase, mMax;
+    private int mAttempts = 0;
+
+    public Backoff(long baseMs, long maxMs) {
+        mBase = Math.max(1, baseMs);
+        mMax = Math.max(mBase, maxMs);
+    }
+
+    /**
+     * Records a failure.
+     * 
+     * @return milliseconds to wait before the next attempt
+     */
+    public long next() {
+        long delay = mMax;
+
+        if (mAttempts < 62 && mBase <= (mMax >> mAttempts)) {
+            delay = mBase << mAttempts;
+        }
+
+        mAttempts++;
+
+        long half = delay / 2;
+
+        synchronized (sRandom) {
+            return delay - half + (long) (sRandom.nextDouble() * (half + 1));
+        }
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    public void reset() {
+        mAttempts = 0;
+    }
+}
@@ -0,0 +1,202 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Batched INSERT into one table. Values are set like a PreparedStatement's
+ * parameters and addBatch() queues the row.
+ *
+ * Rows are sent rowsPerStatement at a time as a single multi-row statement,
+ * so SQLite parses and steps once per group of rows instead of once per row.
+ * The groups are written as SELECT ... UNION ALL SELECT ... since SQLite
+ * before 3.7.11 doesn't accept multiple rows in VALUES.
+ *
+ * Queued groups are sent to the database every flushRows rows rather than
+ * all at the end, so a large feed doesn't build one huge batch in the driver.
+ */
+public class BatchInsert {
+
+    private Connection mConnection;
+    private String mTableName;
+    private String mColumns;
+    private int mNumColumns;
+    private int mRowsPerStatement;
+    private int mFlushRows;
+
+    private PreparedStatement mStatement;
+
+    // Values of the rows not yet added to the statement's batch
+    private Object[] mValues;
+    private int[] mNullTypes;
+    private int mPending = 0;
+
+    // Rows added to the statement's batch but not yet sent
+    private int mBatched = 0;
+
+    // Rows added since the last executeBatch()
+    private int mRowCount = 0;
+
+    public BatchInsert(Connection connection, String tableName, String columns, int rowsPerStatement, int flushRows) throws SQLException {
+        mConnection = connection;
+        mTableName = tableName;
+        mColumns = columns;
+        mNumColumns = columns.split(",").length;
+        mRowsPerStatement = Math.max(1, rowsPerStatement);
+        mFlushRows = Math.max(mRowsPerStatement, flushRows);
+
+        mValues = new Object[mRowsPerStatement * mNumColumns];
+        mNullTypes = new int[mValues.length];
+
+        mStatement = prepare(mRowsPerStatement);
+    }
+
+    public void setInt(int index, int value) {
+        set(index, Integer.valueOf(value));
+    }
+
+    public void setLong(int index, long value) {
+        set(index, Long.valueOf(value));
+    }
+
+    public void setFloat(int index, float value) {
+        set(index, Float.valueOf(value));
+    }
+
+    public void setDouble(int index, double value) {
+        set(index, Double.valueOf(value));
+    }
+
+    public void setString(int index, String value) {
+        if (value == null) {
+            setNull(index, Types.VARCHAR);
+        }
+        else {
+            set(index, value);
+        }
+    }
+
+    public void setNull(int index, int sqlType) {
+        set(index, null);
+        mNullTypes[mPending * mNumColumns + index - 1] = sqlType;
+    }
+
+    /**
+     * Clears the values of the current row. Unlike some drivers'
+     * PreparedStatement.clearParameters(), rows already added are kept.
+     */
+    public void clearParameters() {
+        for (int i = 0; i < mNumColumns; i++) {
+            setNull(i + 1, Types.NULL);
+        }
+    }
+
+    public void addBatch() throws SQLException {
+        mPending++;
+        mRowCount++;
+
+        if (mPending == mRowsPerStatement) {
+            bind(mStatement, mPending);
+            mStatement.addBatch();
+            mBatched += mPending;
+            mPending = 0;
+
+            if (mBatched >= mFlushRows) {
+                mStatement.executeBatch();
+                mBatched = 0;
+            }
+        }
+    }
+
+    /**
+     * Inserts every row added so far.
+     *
+     * @return number of rows inserted
+     */
+    public int executeBatch() throws SQLException {
+        if (mBatched > 0) {
+            mStatement.executeBatch();
+            mBatched = 0;
+        }
+
+        if (mPending > 0) {
+            PreparedStatement stmt = mRowsPerStatement == 1 ? mStatement : prepare(mPending);
+
+            try {
+                bind(stmt, mPending);
+                stmt.executeUpdate();
+            }
+            finally {
+                if (stmt != mStatement) {
+                    stmt.close();
+                }
+            }
+
+            mPending = 0;
+        }
+
+        int rows = mRowCount;
+        mRowCount = 0;
+
+        return rows;
+    }
+
+    public void close() throws SQLException {
+        mPending = 0;
+        mBatched = 0;
+        mRowCount = 0;
+        mStatement.close();
+    }
+
+    private void set(int index, Object value) {
+        mValues[mPending * mNumColumns + index - 1] = value;
+    }
+
+    private void bind(PreparedStatement stmt, int rows) throws SQLException {
+        for (int i = 0; i < rows * mNumColumns; i++) {
+            Object value = mValues[i];
+
+            if (value == null) {
+                stmt.setNull(i + 1, mNullTypes[i]);
+            }
+            else if (value instanceof Integer) {
+                stmt.setInt(i + 1, (Integer) value);
+            }
+            else if (value instanceof Long) {
+                stmt.setLong(i + 1, (Long) value);
+            }
+            else if (value instanceof Float) {
+                stmt.setFloat(i + 1, (Float) value);
+            }
+            else if (value instanceof Double) {
+                stmt.setDouble(i + 1, (Double) value);
+            }
+            else {
+                stmt.setString(i + 1, (String) value);
+            }
+        }
+    }
+
+    private PreparedStatement prepare(int rows) throws SQLException {
+        StringBuilder params = new StringBuilder();
+
+        for (int i = 0; i < mNumColumns; i++) {
+            params.append(i == 0 ? "?" : ", ?");
+        }
+
+        StringBuilder sql = new StringBuilder(String.format("INSERT INTO %s (%s) ", mTableName, mColumns));
+
+        if (rows == 1) {
+            sql.append("VALUES (").append(params).append(")");
+        }
+        else {
+            for (int i = 0; i < rows; i++) {
+                sql.append(i == 0 ? "SELECT " : " UNION ALL SELECT ").append(params);
+            }
+        }
+
+        return mConnection.prepareStatement(sql.toString());
+    }
+}
@@ -0,0 +1,77 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+/**
+ * Tracks consecutive failures of one feed. Each failure holds the feed back
+ * for an exponentially growing, jittered delay, and once a threshold is
+ * reached the circuit opens: the feed is parked and only probed at the
+ * backoff's maximum interval until a load succeeds again.
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_THRESHOLD = 5;
+
+    private Backoff mBackoff;
+    private int mThreshold;
+    private long mRetryAt = 0;
+    private boolean mOpen = false;
+
+    public CircuitBreaker(long baseMs, long maxMs, int threshold) {
+        mBackoff = new Backoff(baseMs, maxMs);
+        mThreshold = Math.max(1, threshold);
+    }
+
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * @return whether the feed may be loaded at the given time
+     */
+    public boolean allows(long now) {
+        return now >= mRetryAt;
+    }
+
+    /**
+     * @return earliest time the feed may be loaded again, 0 if it isn't
+     *         being held back
+     */
+    public long getRetryAt() {
+        return mRetryAt;
+    }
+
+    public int getFailures() {
+        return mBackoff.getAttempts();
+    }
+
+    /**
+     * @return true if this closed an open circuit
+     */
+    public boolean success() {
+        boolean closed = mOpen;
+
+        mOpen = false;
+        mRetryAt = 0;
+        mBackoff.reset();
+
+        return closed;
+    }
+
+    /**
+     * @return true if this opened the circuit
+     */
+    public boolean failure(long now) {
+        long delay = mBackoff.next();
+        boolean opened = false;
+
+        if (!mOpen && mBackoff.getAttempts() >= mThreshold) {
+            mOpen = true;
+            opened = true;
+        }
+
+        // Once open, probe at the maximum interval rather than continuing
+        // to double up to it
+        mRetryAt = now + (mOpen ? mBackoff.getMax() : delay);
+
+        return opened;
+    }
+}
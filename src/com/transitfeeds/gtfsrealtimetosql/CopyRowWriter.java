@@ -0,0 +1,316 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Encodes COPY rows in PostgreSQL text or binary format straight into a
+ * reusable, growable byte buffer.
+ *
+ * Binary rows encode integers as int4 and floating point values as float4,
+ * matching the INTEGER and REAL columns of GtfsRealTimeSqlRecorder.TABLES.
+ */
+public class CopyRowWriter {
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_SIZE = 65536;
+
+    private byte[] mBuffer = new byte[INITIAL_SIZE];
+    private int    mLength = 0;
+    private int    mColumn = 0;
+    private int    mRows   = 0;
+
+    private int mMarkLength = 0;
+    private int mMarkRows   = 0;
+
+    private byte    mSeparator;
+    private boolean mBinary;
+    private int     mRowStart;
+
+    private static final byte[] BINARY_SIGNATURE = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0 };
+
+    public CopyRowWriter(String separator) {
+        this(separator, false);
+    }
+
+    public CopyRowWriter(String separator, boolean binary) {
+        mSeparator = (byte) separator.charAt(0);
+        mBinary = binary;
+
+        if (mBinary) {
+            ensure(BINARY_SIGNATURE.length + 8);
+            System.arraycopy(BINARY_SIGNATURE, 0, mBuffer, 0, BINARY_SIGNATURE.length);
+            mLength = BINARY_SIGNATURE.length;
+
+            // flags, header extension length
+            putInt(0);
+            putInt(0);
+        }
+    }
+
+    public boolean isBinary() {
+        return mBinary;
+    }
+
+    public void startRow() {
+        mColumn = 0;
+
+        if (mBinary) {
+            // field count is filled in by endRow()
+            ensure(2);
+            mRowStart = mLength;
+            mLength += 2;
+        }
+    }
+
+    public void endRow() {
+        if (mBinary) {
+            mBuffer[mRowStart] = (byte) (mColumn >>> 8);
+            mBuffer[mRowStart + 1] = (byte) mColumn;
+        }
+        else {
+            ensure(1);
+            mBuffer[mLength++] = '\n';
+        }
+
+        mRows++;
+    }
+
+    /**
+     * Appends the end-of-data marker. Binary streams must end with this
+     * before the copy is ended; it is a no-op for text.
+     */
+    public void finish() {
+        if (mBinary) {
+            ensure(2);
+            mBuffer[mLength++] = (byte) 0xff;
+            mBuffer[mLength++] = (byte) 0xff;
+        }
+    }
+
+    public void addNull() {
+        startColumn();
+
+        if (mBinary) {
+            putInt(-1);
+        }
+    }
+
+    public void addNull(int count) {
+        for (int i = 0; i < count; i++) {
+            addNull();
+        }
+    }
+
+    public void add(int value) {
+        add((long) value);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the value doesn't fit an INTEGER
+     *         column, before anything is written, rather than truncating it
+     *         in binary rows or failing the whole COPY on the server in text
+     *         rows
+     */
+    public void add(long value) {
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("%d is out of range for an INTEGER column", value));
+        }
+
+        startColumn();
+
+        if (mBinary) {
+            putInt(4);
+            putInt((int) value);
+            return;
+        }
+
+        ensure(20);
+
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            value = -value;
+        }
+
+        int start = mLength;
+
+        do {
+            mBuffer[mLength++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte b = mBuffer[i];
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = b;
+        }
+    }
+
+    public void add(float value) {
+        startColumn();
+
+        if (mBinary) {
+            putInt(4);
+            putInt(Float.floatToIntBits(value));
+        }
+        else {
+            appendAscii(Float.toString(value));
+        }
+    }
+
+    public void add(double value) {
+        if (mBinary) {
+            add((float) value);
+            return;
+        }
+
+        startColumn();
+        appendAscii(Double.toString(value));
+    }
+
+    public void add(String value) {
+        if (value == null) {
+            addNull();
+            return;
+        }
+
+        add(value.getBytes(UTF8));
+    }
+
+    public void add(byte[] utf8) {
+        add(utf8, 0, utf8.length);
+    }
+
+    /**
+     * Adds UTF-8 text, escaping the bytes that are special to COPY. This is
+     * safe on raw UTF-8 since multi-byte sequences never contain ASCII.
+     */
+    public void add(byte[] utf8, int offset, int length) {
+        startColumn();
+
+        if (mBinary) {
+            // Text COPY reads empty strings as NULL, keep binary consistent
+            if (length == 0) {
+                putInt(-1);
+                return;
+            }
+
+            putInt(length);
+            ensure(length);
+            System.arraycopy(utf8, offset, mBuffer, mLength, length);
+            mLength += length;
+            return;
+        }
+
+        ensure(length * 2);
+
+        byte[] buffer = mBuffer;
+        int pos = mLength;
+
+        for (int i = offset; i < offset + length; i++) {
+            byte b = utf8[i];
+
+            if (b == '\\' || b == mSeparator) {
+                buffer[pos++] = '\\';
+                buffer[pos++] = b;
+            }
+            else if (b == '\n') {
+                buffer[pos++] = '\\';
+                buffer[pos++] = 'n';
+            }
+            else if (b == '\r') {
+                buffer[pos++] = '\\';
+                buffer[pos++] = 'r';
+            }
+            else {
+                buffer[pos++] = b;
+            }
+        }
+
+        mLength = pos;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int getRowCount() {
+        return mRows;
+    }
+
+    /**
+     * Sends everything encoded so far and empties the buffer, keeping its
+     * capacity for the next rows.
+     */
+    public void flush(CopyIn copier) throws SQLException {
+        if (mLength > 0) {
+            copier.writeToCopy(mBuffer, 0, mLength);
+        }
+
+        mLength = 0;
+        mMarkLength = 0;
+    }
+
+    /**
+     * Same as flush(CopyIn), but writes the encoded bytes to a stream such
+     * as a spool file.
+     */
+    public void flush(OutputStream out) throws IOException {
+        if (mLength > 0) {
+            out.write(mBuffer, 0, mLength);
+        }
+
+        mLength = 0;
+        mMarkLength = 0;
+    }
+
+    /**
+     * Remembers the current position so a partially written row can be
+     * discarded with rollback().
+     */
+    public void mark() {
+        mMarkLength = mLength;
+        mMarkRows = mRows;
+    }
+
+    public void rollback() {
+        mLength = Math.min(mLength, mMarkLength);
+        mRows = mMarkRows;
+    }
+
+    private void startColumn() {
+        if (mColumn++ > 0 && !mBinary) {
+            ensure(1);
+            mBuffer[mLength++] = mSeparator;
+        }
+    }
+
+    private void putInt(int value) {
+        ensure(4);
+        mBuffer[mLength++] = (byte) (value >>> 24);
+        mBuffer[mLength++] = (byte) (value >>> 16);
+        mBuffer[mLength++] = (byte) (value >>> 8);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void appendAscii(String str) {
+        int length = str.length();
+        ensure(length);
+
+        for (int i = 0; i < length; i++) {
+            mBuffer[mLength++] = (byte) str.charAt(i);
+        }
+    }
+
+    private void ensure(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+        }
+    }
+}
@@ -0,0 +1,681 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition.CongestionLevel;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
+
+/**
+ * Reads TripUpdate, StopTimeUpdate and VehiclePosition fields straight off
+ * the wire and writes the gtfs_rt_trip_updates, gtfs_rt_trip_updates_stoptimes
+ * and gtfs_rt_vehicles COPY rows without building message objects. Strings
+ * are copied as raw UTF-8 slices of the feed buffer.
+ *
+ * Column order and defaults must match recordTripUpdate() and
+ * recordVehicle() in GtfsRealTimeSqlRecorder.
+ */
+public class CopyTranscoder {
+
+    private static final int VARINT  = WireFormat.WIRETYPE_VARINT;
+    private static final int FIXED32 = WireFormat.WIRETYPE_FIXED32;
+    private static final int FIXED64 = WireFormat.WIRETYPE_FIXED64;
+    private static final int BYTES   = WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private static final int ENTITY_TRIP_UPDATE = FeedEntity.TRIP_UPDATE_FIELD_NUMBER << 3 | BYTES;
+    private static final int ENTITY_VEHICLE     = FeedEntity.VEHICLE_FIELD_NUMBER << 3 | BYTES;
+
+    private static final int TU_TRIP             = TripUpdate.TRIP_FIELD_NUMBER << 3 | BYTES;
+    private static final int TU_STOP_TIME_UPDATE = TripUpdate.STOP_TIME_UPDATE_FIELD_NUMBER << 3 | BYTES;
+    private static final int TU_VEHICLE          = TripUpdate.VEHICLE_FIELD_NUMBER << 3 | BYTES;
+    private static final int TU_TIMESTAMP        = TripUpdate.TIMESTAMP_FIELD_NUMBER << 3 | VARINT;
+
+    private static final int TD_TRIP_ID               = TripDescriptor.TRIP_ID_FIELD_NUMBER << 3 | BYTES;
+    private static final int TD_START_TIME            = TripDescriptor.START_TIME_FIELD_NUMBER << 3 | BYTES;
+    private static final int TD_START_DATE            = TripDescriptor.START_DATE_FIELD_NUMBER << 3 | BYTES;
+    private static final int TD_SCHEDULE_RELATIONSHIP = TripDescriptor.SCHEDULE_RELATIONSHIP_FIELD_NUMBER << 3 | VARINT;
+    private static final int TD_ROUTE_ID              = TripDescriptor.ROUTE_ID_FIELD_NUMBER << 3 | BYTES;
+
+    private static final int VD_ID            = VehicleDescriptor.ID_FIELD_NUMBER << 3 | BYTES;
+    private static final int VD_LABEL         = VehicleDescriptor.LABEL_FIELD_NUMBER << 3 | BYTES;
+    private static final int VD_LICENSE_PLATE = VehicleDescriptor.LICENSE_PLATE_FIELD_NUMBER << 3 | BYTES;
+
+    private static final int STU_STOP_SEQUENCE         = StopTimeUpdate.STOP_SEQUENCE_FIELD_NUMBER << 3 | VARINT;
+    private static final int STU_ARRIVAL               = StopTimeUpdate.ARRIVAL_FIELD_NUMBER << 3 | BYTES;
+    private static final int STU_DEPARTURE             = StopTimeUpdate.DEPARTURE_FIELD_NUMBER << 3 | BYTES;
+    private static final int STU_STOP_ID               = StopTimeUpdate.STOP_ID_FIELD_NUMBER << 3 | BYTES;
+    private static final int STU_SCHEDULE_RELATIONSHIP = StopTimeUpdate.SCHEDULE_RELATIONSHIP_FIELD_NUMBER << 3 | VARINT;
+
+    private static final int STE_DELAY       = StopTimeEvent.DELAY_FIELD_NUMBER << 3 | VARINT;
+    private static final int STE_TIME        = StopTimeEvent.TIME_FIELD_NUMBER << 3 | VARINT;
+    private static final int STE_UNCERTAINTY = StopTimeEvent.UNCERTAINTY_FIELD_NUMBER << 3 | VARINT;
+
+    private static final int VP_TRIP                  = VehiclePosition.TRIP_FIELD_NUMBER << 3 | BYTES;
+    private static final int VP_POSITION              = VehiclePosition.POSITION_FIELD_NUMBER << 3 | BYTES;
+    private static final int VP_CURRENT_STOP_SEQUENCE = VehiclePosition.CURRENT_STOP_SEQUENCE_FIELD_NUMBER << 3 | VARINT;
+    private static final int VP_CURRENT_STATUS        = VehiclePosition.CURRENT_STATUS_FIELD_NUMBER << 3 | VARINT;
+    private static final int VP_TIMESTAMP             = VehiclePosition.TIMESTAMP_FIELD_NUMBER << 3 | VARINT;
+    private static final int VP_CONGESTION_LEVEL      = VehiclePosition.CONGESTION_LEVEL_FIELD_NUMBER << 3 | VARINT;
+    private static final int VP_STOP_ID               = VehiclePosition.STOP_ID_FIELD_NUMBER << 3 | BYTES;
+    private static final int VP_VEHICLE               = VehiclePosition.VEHICLE_FIELD_NUMBER << 3 | BYTES;
+
+    private static final int POS_LATITUDE  = Position.LATITUDE_FIELD_NUMBER << 3 | FIXED32;
+    private static final int POS_LONGITUDE = Position.LONGITUDE_FIELD_NUMBER << 3 | FIXED32;
+    private static final int POS_BEARING   = Position.BEARING_FIELD_NUMBER << 3 | FIXED32;
+    private static final int POS_ODOMETER  = Position.ODOMETER_FIELD_NUMBER << 3 | FIXED64;
+    private static final int POS_SPEED     = Position.SPEED_FIELD_NUMBER << 3 | FIXED32;
+
+    // Slots for string fields, stored as offset/length into the feed buffer
+    private static final int TRIP_ID       = 0;
+    private static final int START_TIME    = 1;
+    private static final int START_DATE    = 2;
+    private static final int ROUTE_ID      = 3;
+    private static final int VEHICLE_ID    = 4;
+    private static final int VEHICLE_LABEL = 5;
+    private static final int VEHICLE_PLATE = 6;
+    private static final int STOP_ID       = 7;
+    private static final int NUM_STRINGS   = 8;
+
+    private byte[] mData;
+    private int    mBase;
+
+    private int[] mStringOffsets = new int[NUM_STRINGS];
+    private int[] mStringLengths = new int[NUM_STRINGS];
+
+    private boolean mHasTimestamp;
+    private long    mTimestamp;
+    private boolean mHasTripScheduleRelationship;
+    private int     mTripScheduleRelationship;
+
+    private boolean mHasPosition;
+    private boolean mHasBearing, mHasOdometer, mHasSpeed, mHasLatitude, mHasLongitude;
+    private float   mBearing, mSpeed, mLatitude, mLongitude;
+    private double  mOdometer;
+    private int     mCongestionLevel, mVehicleStatus, mStopSequence;
+
+    private boolean mHasArrival, mHasArrivalTime, mHasArrivalUncertainty, mHasArrivalDelay;
+    private long    mArrivalTime;
+    private int     mArrivalUncertainty, mArrivalDelay;
+    private boolean mHasDeparture, mHasDepartureTime, mHasDepartureUncertainty, mHasDepartureDelay;
+    private long    mDepartureTime;
+    private int     mDepartureUncertainty, mDepartureDelay;
+    private int     mStopScheduleRelationship;
+
+    /**
+     * Writes one gtfs_rt_trip_updates row and its gtfs_rt_trip_updates_stoptimes
+     * rows for the entity at data[offset, offset + length).
+     *
+     * @return false if the entity has no trip update
+     */
+    public boolean writeTripUpdate(byte[] data, int offset, int length, int updateId, int recorded, CopyRowWriter tuWriter, CopyRowWriter stWriter) throws IOException {
+        CodedInputStream input = findField(data, offset, length, ENTITY_TRIP_UPDATE);
+
+        if (input == null) {
+            return false;
+        }
+
+        clearStrings();
+        mHasTimestamp = false;
+        mHasTripScheduleRelationship = false;
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            switch (tag) {
+                case TU_TRIP:
+                    readTripDescriptor(input);
+                    break;
+
+                case TU_STOP_TIME_UPDATE:
+                    readStopTimeUpdate(input, updateId, stWriter);
+                    break;
+
+                case TU_VEHICLE:
+                    readVehicleDescriptor(input);
+                    break;
+
+                case TU_TIMESTAMP:
+                    mHasTimestamp = true;
+                    mTimestamp = input.readUInt64();
+                    break;
+
+                default:
+                    input.skipField(tag);
+            }
+        }
+
+        tuWriter.startRow();
+        tuWriter.add(updateId);
+        addLong(tuWriter, mHasTimestamp, mTimestamp);
+        addInt(tuWriter, mHasTripScheduleRelationship, mTripScheduleRelationship);
+        addString(tuWriter, START_DATE);
+        addString(tuWriter, START_TIME);
+        addString(tuWriter, TRIP_ID);
+        addString(tuWriter, ROUTE_ID);
+        addString(tuWriter, VEHICLE_ID);
+        addString(tuWriter, VEHICLE_LABEL);
+        addString(tuWriter, VEHICLE_PLATE);
+        tuWriter.add(recorded);
+        tuWriter.endRow();
+
+        return true;
+    }
+
+    /**
+     * Writes one gtfs_rt_vehicles row for the entity at data[offset, offset + length).
+     *
+     * @return false if the entity has no vehicle position, or it has no
+     *         position (which recordVehicle() rejects as well)
+     */
+    public boolean writeVehicle(byte[] data, int offset, int length, int recorded, CopyRowWriter writer) throws IOException {
+        CodedInputStream input = findField(data, offset, length, ENTITY_VEHICLE);
+
+        if (input == null) {
+            return false;
+        }
+
+        clearStrings();
+        mHasTimestamp = false;
+        mHasTripScheduleRelationship = false;
+        mHasPosition = false;
+        mHasBearing = mHasOdometer = mHasSpeed = mHasLatitude = mHasLongitude = false;
+        mCongestionLevel = CongestionLevel.UNKNOWN_CONGESTION_LEVEL_VALUE;
+        mVehicleStatus = VehicleStopStatus.IN_TRANSIT_TO_VALUE;
+        mStopSequence = -1;
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            switch (tag) {
+                case VP_TRIP:
+                    readTripDescriptor(input);
+                    break;
+
+                case VP_POSITION:
+                    readPosition(input);
+                    break;
+
+                case VP_CURRENT_STOP_SEQUENCE:
+                    mStopSequence = input.readUInt32();
+                    break;
+
+                case VP_CURRENT_STATUS: {
+                    int value = input.readEnum();
+
+                    if (VehicleStopStatus.valueOf(value) != null) {
+                        mVehicleStatus = value;
+                    }
+                    break;
+                }
+
+                case VP_TIMESTAMP:
+                    mHasTimestamp = true;
+                    mTimestamp = input.readUInt64();
+                    break;
+
+                case VP_CONGESTION_LEVEL: {
+                    int value = input.readEnum();
+
+                    if (CongestionLevel.valueOf(value) != null) {
+                        mCongestionLevel = value;
+                    }
+                    break;
+                }
+
+                case VP_STOP_ID:
+                    readString(input, STOP_ID);
+                    break;
+
+                case VP_VEHICLE:
+                    readVehicleDescriptor(input);
+                    break;
+
+                default:
+                    input.skipField(tag);
+            }
+        }
+
+        if (!mHasPosition) {
+            return false;
+        }
+
+        writer.startRow();
+        writer.add(mCongestionLevel);
+        writer.add(mVehicleStatus);
+        writer.add(mStopSequence);
+        addFloat(writer, mHasBearing, mBearing);
+        addDouble(writer, mHasOdometer, mOdometer);
+        addFloat(writer, mHasSpeed, mSpeed);
+        addFloat(writer, mHasLatitude, mLatitude);
+        addFloat(writer, mHasLongitude, mLongitude);
+        addString(writer, STOP_ID);
+        addLong(writer, mHasTimestamp, mTimestamp);
+        addInt(writer, mHasTripScheduleRelationship, mTripScheduleRelationship);
+        addString(writer, START_DATE);
+        addString(writer, START_TIME);
+        addString(writer, TRIP_ID);
+        addString(writer, ROUTE_ID);
+        addString(writer, VEHICLE_ID);
+        addString(writer, VEHICLE_LABEL);
+        addString(writer, VEHICLE_PLATE);
+        writer.add(recorded);
+        writer.endRow();
+
+        return true;
+    }
+
+    /**
+     * @return the trip_id of the entity's trip update, or null if it has no
+     *         trip update or the trip_id is empty
+     */
+    public String getTripId(byte[] data, int offset, int length) throws IOException {
+        return readKey(findField(data, offset, length, ENTITY_TRIP_UPDATE), TU_TRIP, TRIP_ID);
+    }
+
+    /**
+     * @return the vehicle_id of the entity's vehicle position, or null if it
+     *         has no vehicle position or the vehicle_id is empty
+     */
+    public String getVehicleId(byte[] data, int offset, int length) throws IOException {
+        return readKey(findField(data, offset, length, ENTITY_VEHICLE), VP_VEHICLE, VEHICLE_ID);
+    }
+
+    private String readKey(CodedInputStream input, int descriptorTag, int slot) throws IOException {
+        if (input == null) {
+            return null;
+        }
+
+        clearStrings();
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            if (tag == descriptorTag && slot == TRIP_ID) {
+                readTripDescriptor(input);
+            }
+            else if (tag == descriptorTag) {
+                readVehicleDescriptor(input);
+            }
+            else {
+                input.skipField(tag);
+            }
+        }
+
+        // Empty strings are recorded as NULL, so key them the same way
+        if (mStringOffsets[slot] < 0 || mStringLengths[slot] == 0) {
+            return null;
+        }
+
+        return new String(mData, mStringOffsets[slot], mStringLengths[slot], CopyRowWriter.UTF8);
+    }
+
+    /**
+     * Positions a stream over the last occurrence of the given message field
+     * of the entity and limits it to that field's bytes.
+     */
+    private CodedInputStream findField(byte[] data, int offset, int length, int fieldTag) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(data, offset, length);
+
+        int fieldOffset = -1;
+        int fieldLength = 0;
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            if (tag == fieldTag) {
+                fieldLength = input.readRawVarint32();
+                fieldOffset = offset + input.getTotalBytesRead();
+                input.skipRawBytes(fieldLength);
+            }
+            else {
+                input.skipField(tag);
+            }
+        }
+
+        if (fieldOffset < 0) {
+            return null;
+        }
+
+        mData = data;
+        mBase = fieldOffset;
+
+        return CodedInputStream.newInstance(data, fieldOffset, fieldLength);
+    }
+
+    private void readTripDescriptor(CodedInputStream input) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            switch (tag) {
+                case TD_TRIP_ID:
+                    readString(input, TRIP_ID);
+                    break;
+
+                case TD_START_TIME:
+                    readString(input, START_TIME);
+                    break;
+
+                case TD_START_DATE:
+                    readString(input, START_DATE);
+                    break;
+
+                case TD_ROUTE_ID:
+                    readString(input, ROUTE_ID);
+                    break;
+
+                case TD_SCHEDULE_RELATIONSHIP: {
+                    int value = input.readEnum();
+
+                    if (TripDescriptor.ScheduleRelationship.valueOf(value) != null) {
+                        mHasTripScheduleRelationship = true;
+                        mTripScheduleRelationship = value;
+                    }
+                    break;
+                }
+
+                default:
+                    input.skipField(tag);
+            }
+        }
+
+        input.popLimit(oldLimit);
+    }
+
+    private void readVehicleDescriptor(CodedInputStream input) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            switch (tag) {
+                case VD_ID:
+                    readString(input, VEHICLE_ID);
+                    break;
+
+                case VD_LABEL:
+                    readString(input, VEHICLE_LABEL);
+                    break;
+
+                case VD_LICENSE_PLATE:
+                    readString(input, VEHICLE_PLATE);
+                    break;
+
+                default:
+                    input.skipField(tag);
+            }
+        }
+
+        input.popLimit(oldLimit);
+    }
+
+    private void readPosition(CodedInputStream input) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+
+        mHasPosition = true;
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            switch (tag) {
+                case POS_LATITUDE:
+                    mHasLatitude = true;
+                    mLatitude = input.readFloat();
+                    break;
+
+                case POS_LONGITUDE:
+                    mHasLongitude = true;
+                    mLongitude = input.readFloat();
+                    break;
+
+                case POS_BEARING:
+                    mHasBearing = true;
+                    mBearing = input.readFloat();
+                    break;
+
+                case POS_ODOMETER:
+                    mHasOdometer = true;
+                    mOdometer = input.readDouble();
+                    break;
+
+                case POS_SPEED:
+                    mHasSpeed = true;
+                    mSpeed = input.readFloat();
+                    break;
+
+                default:
+                    input.skipField(tag);
+            }
+        }
+
+        input.popLimit(oldLimit);
+    }
+
+    private void readStopTimeUpdate(CodedInputStream input, int updateId, CopyRowWriter writer) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+
+        mStringOffsets[STOP_ID] = -1;
+        mStopSequence = -1;
+        mStopScheduleRelationship = StopTimeUpdate.ScheduleRelationship.SCHEDULED_VALUE;
+        mHasArrival = mHasArrivalTime = mHasArrivalUncertainty = mHasArrivalDelay = false;
+        mHasDeparture = mHasDepartureTime = mHasDepartureUncertainty = mHasDepartureDelay = false;
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            switch (tag) {
+                case STU_STOP_SEQUENCE:
+                    mStopSequence = input.readUInt32();
+                    break;
+
+                case STU_ARRIVAL:
+                    mHasArrival = true;
+                    readStopTimeEvent(input, true);
+                    break;
+
+                case STU_DEPARTURE:
+                    mHasDeparture = true;
+                    readStopTimeEvent(input, false);
+                    break;
+
+                case STU_STOP_ID:
+                    readString(input, STOP_ID);
+                    break;
+
+                case STU_SCHEDULE_RELATIONSHIP: {
+                    int value = input.readEnum();
+
+                    if (StopTimeUpdate.ScheduleRelationship.valueOf(value) != null) {
+                        mStopScheduleRelationship = value;
+                    }
+                    break;
+                }
+
+                default:
+                    input.skipField(tag);
+            }
+        }
+
+        input.popLimit(oldLimit);
+
+        writer.startRow();
+        writer.add(updateId);
+
+        if (mHasArrival) {
+            addLong(writer, mHasArrivalTime, mArrivalTime);
+            addInt(writer, mHasArrivalUncertainty, mArrivalUncertainty);
+            addInt(writer, mHasArrivalDelay, mArrivalDelay);
+        }
+        else {
+            writer.addNull(3);
+        }
+
+        if (mHasDeparture) {
+            addLong(writer, mHasDepartureTime, mDepartureTime);
+            addInt(writer, mHasDepartureUncertainty, mDepartureUncertainty);
+            addInt(writer, mHasDepartureDelay, mDepartureDelay);
+        }
+        else {
+            writer.addNull(3);
+        }
+
+        writer.add(mStopScheduleRelationship);
+        addString(writer, STOP_ID);
+        writer.add(mStopSequence);
+        writer.endRow();
+    }
+
+    private void readStopTimeEvent(CodedInputStream input, boolean arrival) throws IOException {
+        int oldLimit = input.pushLimit(input.readRawVarint32());
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            switch (tag) {
+                case STE_DELAY:
+                    if (arrival) {
+                        mHasArrivalDelay = true;
+                        mArrivalDelay = input.readInt32();
+                    }
+                    else {
+                        mHasDepartureDelay = true;
+                        mDepartureDelay = input.readInt32();
+                    }
+                    break;
+
+                case STE_TIME:
+                    if (arrival) {
+                        mHasArrivalTime = true;
+                        mArrivalTime = input.readInt64();
+                    }
+                    else {
+                        mHasDepartureTime = true;
+                        mDepartureTime = input.readInt64();
+                    }
+                    break;
+
+                case STE_UNCERTAINTY:
+                    if (arrival) {
+                        mHasArrivalUncertainty = true;
+                        mArrivalUncertainty = input.readInt32();
+                    }
+                    else {
+                        mHasDepartureUncertainty = true;
+                        mDepartureUncertainty = input.readInt32();
+                    }
+                    break;
+
+                default:
+                    input.skipField(tag);
+            }
+        }
+
+        input.popLimit(oldLimit);
+    }
+
+    private void readString(CodedInputStream input, int slot) throws IOException {
+        int length = input.readRawVarint32();
+
+        mStringOffsets[slot] = mBase + input.getTotalBytesRead();
+        mStringLengths[slot] = length;
+
+        input.skipRawBytes(length);
+    }
+
+    private void clearStrings() {
+        for (int i = 0; i < NUM_STRINGS; i++) {
+            mStringOffsets[i] = -1;
+        }
+    }
+
+    private void addString(CopyRowWriter writer, int slot) {
+        if (mStringOffsets[slot] < 0) {
+            writer.addNull();
+        }
+        else {
+            writer.add(mData, mStringOffsets[slot], mStringLengths[slot]);
+        }
+    }
+
+    private static void addInt(CopyRowWriter writer, boolean has, int value) {
+        if (has) {
+            writer.add(value);
+        }
+        else {
+            writer.addNull();
+        }
+    }
+
+    private static void addLong(CopyRowWriter writer, boolean has, long value) {
+        if (has) {
+            writer.add(value);
+        }
+        else {
+            writer.addNull();
+        }
+    }
+
+    private static void addFloat(CopyRowWriter writer, boolean has, float value) {
+        if (has) {
+            writer.add(value);
+        }
+        else {
+            writer.addNull();
+        }
+    }
+
+    private static void addDouble(CopyRowWriter writer, boolean has, double value) {
+        if (has) {
+            writer.add(value);
+        }
+        else {
+            writer.addNull();
+        }
+    }
+}
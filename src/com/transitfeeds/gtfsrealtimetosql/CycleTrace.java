@@ -0,0 +1,112 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timing spans for every stage of one cycle, from fetching its feeds to
+ * committing them. Spans may be added from the fetch threads concurrently.
+ *
+ * getSummary() totals the spans by stage for a one-line record of each
+ * cycle; getDetail() lists every span with its offset into the cycle, for
+ * working out why a slow cycle was slow.
+ */
+public class CycleTrace {
+
+    private static class Span {
+        String mStage;
+        String mDetail;
+        long   mStart;
+        long   mNanos;
+    }
+
+    private long mStart = System.nanoTime();
+    private List<Span> mSpans = new ArrayList<Span>();
+
+    /**
+     * Adds a span from startNanos, a System.nanoTime() value, until now.
+     *
+     * @param detail what the stage worked on, e.g. a feed URL or table
+     *        name, or null
+     */
+    public void add(String stage, String detail, long startNanos) {
+        add(stage, detail, startNanos, System.nanoTime() - startNanos);
+    }
+
+    public synchronized void add(String stage, String detail, long startNanos, long nanos) {
+        Span span = new Span();
+        span.mStage = stage;
+        span.mDetail = detail;
+        span.mStart = startNanos;
+        span.mNanos = nanos;
+
+        mSpans.add(span);
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - mStart) / 1000000;
+    }
+
+    /**
+     * @return e.g. "fetch=820ms, load=1610ms, write=310ms", with stages in
+     *         the order they first ran. Concurrent spans of a stage are
+     *         summed, so a stage can exceed the cycle's elapsed time.
+     */
+    public synchronized String getSummary() {
+        Map<String, Long> totals = new LinkedHashMap<String, Long>();
+
+        for (Span span : getSortedSpans()) {
+            Long total = totals.get(span.mStage);
+            totals.put(span.mStage, total == null ? span.mNanos : total + span.mNanos);
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+
+            sb.append(entry.getKey()).append('=').append(entry.getValue() / 1000000).append("ms");
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return one line per span: its start relative to the cycle, stage,
+     *         duration and detail
+     */
+    public synchronized String getDetail() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Span span : getSortedSpans()) {
+            sb.append(String.format("%8dms  %-10s %8dms", (span.mStart - mStart) / 1000000, span.mStage, span.mNanos / 1000000));
+
+            if (span.mDetail != null) {
+                sb.append("  ").append(span.mDetail);
+            }
+
+            sb.append(String.format("%n"));
+        }
+
+        return sb.toString();
+    }
+
+    private List<Span> getSortedSpans() {
+        List<Span> spans = new ArrayList<Span>(mSpans);
+
+        Collections.sort(spans, new Comparator<Span>() {
+            @Override
+            public int compare(Span a, Span b) {
+                return a.mStart < b.mStart ? -1 : (a.mStart == b.mStart ? 0 : 1);
+            }
+        });
+
+        return spans;
+    }
+}
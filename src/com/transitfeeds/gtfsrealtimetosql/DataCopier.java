@@ -1,46 +1,183 @@
 package com.transitfeeds.gtfsrealtimetosql;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.postgresql.copy.CopyIn;
 
 public class DataCopier {
 
-	private List<DataCopierRow> mRows = new ArrayList<DataCopierRow>();
-	
 	private CopyIn mCopier;
 	private String mSeparator;
+	private CopyRowWriter mWriter;
+	private boolean mBinary = false;
+	private DataCopierRow mOpenRow;
+	
+	private File mSpoolFile;
+	private OutputStream mSpool;
+	
+	private static final int FLUSH_SIZE = 65536;
 	
 	public DataCopier() {
 	}
 	
+	public DataCopier(String separator) {
+		mSeparator = separator;
+	}
+	
 	public DataCopier(CopyIn copier, String separator) {
-	    mSeparator = separator;
-	    mCopier = copier;
+		mSeparator = separator;
+		mCopier = copier;
+	}
+	
+	/**
+	 * Must be set before the first row is added.
+	 */
+	public void setBinary(boolean binary) {
+		mBinary = binary;
+	}
+	
+	/**
+	 * Writer shared by every row of this copier. Callers writing to it
+	 * directly must call flushIfFull() after each complete row so live
+	 * copies don't buffer unboundedly.
+	 */
+	public CopyRowWriter getWriter() {
+		if (mWriter == null) {
+			mWriter = new CopyRowWriter(mSeparator, mBinary);
+		}
+		
+		return mWriter;
+	}
+	
+	/**
+	 * Live copies are sent to the server; buffered copies are spooled to a
+	 * temporary file until write() is called, so memory use stays at
+	 * roughly FLUSH_SIZE regardless of the number of rows.
+	 */
+	public void flushIfFull() throws SQLException, IOException {
+		if (mWriter == null || mWriter.length() < FLUSH_SIZE) {
+			return;
+		}
+		
+		if (mCopier != null) {
+			mWriter.flush(mCopier);
+		}
+		else {
+			mWriter.flush(getSpool());
+		}
+	}
+	
+	/**
+	 * Sends any rows still held by the writer to a live copy. Must be
+	 * called before the copy is ended. A binary copy always gets its
+	 * header and trailer, even with no rows, since the server rejects an
+	 * empty binary stream.
+	 */
+	public void flush() throws SQLException {
+		if (mCopier != null && (mWriter != null || mBinary)) {
+			CopyRowWriter writer = getWriter();
+			writer.finish();
+			writer.flush(mCopier);
+		}
+	}
+	
+	/**
+	 * Starts a row encoded into this copier's writer; pass it to add() once
+	 * all of its values have been added, or call rollback() to discard it.
+	 */
+	public DataCopierRow newRow() {
+		CopyRowWriter writer = getWriter();
+		writer.mark();
+		
+		mOpenRow = new DataCopierRow(writer);
+		return mOpenRow;
 	}
 	
-	public void add(DataCopierRow row) throws SQLException {
-	    if (mCopier == null) {
-	        mRows.add(row);
-	    }
-	    else {
-	        row.write(mCopier, mSeparator);
-	    }
+	public void add(DataCopierRow row) throws SQLException, IOException {
+		row.end();
+		mOpenRow = null;
+		flushIfFull();
+	}
+	
+	/**
+	 * Discards the row started by newRow() but not yet added, if any, so a
+	 * failure part way through a row can't leave it half written in the
+	 * copy stream. Rows already added are kept.
+	 */
+	public void rollback() {
+		if (mOpenRow != null) {
+			mWriter.rollback();
+			mOpenRow = null;
+		}
 	}
 
-	public void write(CopyIn copier, String separator) throws SQLException {
-	    if (mCopier != null) {
-	        return;
-	    }
-	    
-		for (DataCopierRow row : mRows) {
-		    row.write(copier, separator);
+	public void write(CopyIn copier) throws SQLException, IOException {
+		if (mCopier != null) {
+			return;
+		}
+		
+		if (mSpool != null) {
+			mSpool.close();
+			mSpool = null;
+			
+			InputStream is = new FileInputStream(mSpoolFile);
+			
+			try {
+				byte[] buffer = new byte[FLUSH_SIZE];
+				int read;
+				
+				while ((read = is.read(buffer)) > 0) {
+					copier.writeToCopy(buffer, 0, read);
+				}
+			}
+			finally {
+				is.close();
+			}
+		}
+		
+		if (mWriter != null) {
+			mWriter.finish();
+			mWriter.flush(copier);
+		}
+		
+		close();
+	}
+	
+	/**
+	 * Discards any spooled rows. Safe to call more than once.
+	 */
+	public void close() {
+		if (mSpool != null) {
+			try {
+				mSpool.close();
+			} catch (IOException e) {
+			}
+			
+			mSpool = null;
+		}
+		
+		if (mSpoolFile != null) {
+			mSpoolFile.delete();
+			mSpoolFile = null;
+		}
+	}
+	
+	private OutputStream getSpool() throws IOException {
+		if (mSpool == null) {
+			mSpoolFile = File.createTempFile("gtfsrt-copy", ".spool");
+			mSpool = new FileOutputStream(mSpoolFile);
 		}
+		
+		return mSpool;
 	}
 	
 	public int size() {
-	    return mRows.size();
+		return mWriter == null ? 0 : mWriter.getRowCount();
 	}
 }
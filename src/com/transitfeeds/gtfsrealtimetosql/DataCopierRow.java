@@ -1,69 +1,47 @@
 package com.transitfeeds.gtfsrealtimetosql;
 
-import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
-
-import org.postgresql.copy.CopyIn;
-
+/**
+ * One COPY row, encoded straight into the owning DataCopier's writer as
+ * values are added. Rows of the same copier must not be interleaved.
+ */
 public class DataCopierRow {
 
-	private List<String> mValues = new ArrayList<String>();
+	private CopyRowWriter mWriter;
+
+	public DataCopierRow(CopyRowWriter writer) {
+		mWriter = writer;
+		mWriter.startRow();
+	}
 
 	public void add(String value) {
-		mValues.add(value);
+		mWriter.add(value);
 	}
 	
 	public void add(int value) {
-		mValues.add(Integer.toString(value));
+		mWriter.add(value);
 	}
 
 	public void add(long value) {
-		mValues.add(Long.toString(value));
+		mWriter.add(value);
 	}
 
     public void add(float value) {
-        mValues.add(Float.toString(value));
+        mWriter.add(value);
     }
 
     public void add(double value) {
-        mValues.add(Double.toString(value));
+        mWriter.add(value);
     }
 
     public void addNull() {
-		add("");
+		mWriter.addNull();
 	}
 	
 	public void addNull(int count) {
-		for (int i = 1 ; i <= count; i++) {
-			addNull();
-		}
-	}
-
-	public byte[] getBytes(String separator) {
-		return getString(separator).getBytes();
-	}
-	
-	public String getString(String separator) {
-		return toString(mValues, separator);
+		mWriter.addNull(count);
 	}
 
-	private String toString(List<String> parts, String separator) {
-		String ret = "";
-		
-		int i = 0;
-		for (String part : parts) {
-			if (i++ > 0) {
-				ret += separator;
-			}
-			
-			ret += part;
-		}
-		return ret + "\n";
+	void end() {
+		mWriter.endRow();
 	}
-
-    public void write(CopyIn copier, String separator) throws SQLException {
-        byte[] bytes = getBytes(separator);
-        copier.writeToCopy(bytes, 0, bytes.length);
-    }
 }
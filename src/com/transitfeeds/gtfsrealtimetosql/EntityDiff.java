@@ -0,0 +1,115 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks a fingerprint per key (e.g. trip_id or vehicle_id) for the rows
+ * of one table so a cycle only needs to rewrite the keys that changed.
+ *
+ * Entities sharing a key are fingerprinted together, so a key's rows are
+ * always replaced as a group. A null key stands for entities without one.
+ */
+public class EntityDiff {
+
+    private Map<String, Long> mRecorded = new HashMap<String, Long>();
+    private Map<String, Long> mPending;
+    private Map<String, Long> mPrevious;
+    private Map<String, Long> mCurrent;
+    private boolean mValid = false;
+
+    /**
+     * @return true if the recorded fingerprints match what was last
+     *         committed, i.e. a diff can be applied
+     */
+    public boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * Starts fingerprinting a new set of entities.
+     *
+     * @param full true if the table is being rewritten from scratch, in
+     *            which case every key is treated as changed
+     */
+    public void start(boolean full) {
+        if (full) {
+            mPrevious = new HashMap<String, Long>();
+        }
+        else {
+            mPrevious = mPending != null ? mPending : mRecorded;
+        }
+
+        mCurrent = new HashMap<String, Long>();
+    }
+
+    public void add(String key, long fingerprint) {
+        Long hash = mCurrent.get(key);
+        mCurrent.put(key, hash == null ? fingerprint : hash * 31 + fingerprint);
+    }
+
+    public boolean isChanged(String key) {
+        Long previous = mPrevious.get(key);
+        return previous == null || !previous.equals(mCurrent.get(key));
+    }
+
+    /**
+     * @return keys whose existing rows must be deleted: those that changed
+     *         and those that are no longer in the feed
+     */
+    public List<String> getStaleKeys() {
+        List<String> keys = new ArrayList<String>();
+
+        for (Map.Entry<String, Long> entry : mPrevious.entrySet()) {
+            if (!entry.getValue().equals(mCurrent.get(entry.getKey()))) {
+                keys.add(entry.getKey());
+            }
+        }
+
+        return keys;
+    }
+
+    public int getChangedCount() {
+        int count = 0;
+
+        for (String key : mCurrent.keySet()) {
+            if (isChanged(key)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * The current fingerprints become the table's contents once committed.
+     */
+    public void finish() {
+        mPending = mCurrent;
+        mCurrent = null;
+        mPrevious = null;
+    }
+
+    public void commit() {
+        if (mPending != null) {
+            mRecorded = mPending;
+            mPending = null;
+            mValid = true;
+        }
+    }
+
+    public void rollback() {
+        mPending = null;
+    }
+
+    /**
+     * Forgets everything, forcing the next cycle to rewrite the table.
+     */
+    public void invalidate() {
+        mRecorded = new HashMap<String, Long>();
+        mPending = null;
+        mValid = false;
+    }
+}
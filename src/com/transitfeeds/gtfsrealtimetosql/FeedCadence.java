@@ -0,0 +1,82 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+/**
+ * Learns how often a producer publishes from the timestamps of successive
+ * messages, so a feed can be polled shortly after its next expected update
+ * rather than at a fixed rate.
+ *
+ * Intervals are measured between the producer's own timestamps and so are
+ * unaffected by clock skew. To predict the next update in local time, the
+ * smallest observed delay between a publish and its arrival here is used as
+ * the offset between the two clocks.
+ */
+public class FeedCadence {
+
+    // Weight given to each new interval when smoothing
+    private static final double SMOOTHING = 0.25;
+
+    // Intervals shorter than this are treated as noise
+    private static final long MIN_INTERVAL_MS = 1000;
+
+    // Lets the clock offset rise again if the producer's clock drifts
+    private static final long OFFSET_DRIFT_MS = 1000;
+
+    private long mPublished = -1;
+    private long mInterval = -1;
+    private long mOffset = Long.MAX_VALUE;
+
+    /**
+     * @param publishedMs producer time of the message just loaded
+     * @param arrivedMs local time it was loaded
+     */
+    public void observe(long publishedMs, long arrivedMs) {
+        // Only the first sighting of a message says when it became available
+        if (publishedMs <= 0 || publishedMs <= mPublished) {
+            return;
+        }
+
+        long offset = arrivedMs - publishedMs;
+        mOffset = mOffset == Long.MAX_VALUE ? offset : Math.min(offset, mOffset + OFFSET_DRIFT_MS);
+
+        if (mPublished > 0) {
+            long interval = publishedMs - mPublished;
+
+            if (interval >= MIN_INTERVAL_MS) {
+                if (mInterval < 0) {
+                    mInterval = interval;
+                }
+                else {
+                    // A gap spanning missed updates or an outage shouldn't
+                    // stretch the estimate by more than one interval at a time
+                    interval = Math.min(interval, mInterval * 2);
+                    mInterval = Math.round(mInterval + SMOOTHING * (interval - mInterval));
+                }
+            }
+        }
+
+        mPublished = publishedMs;
+    }
+
+    public boolean isKnown() {
+        return mInterval > 0;
+    }
+
+    /**
+     * @return estimated milliseconds between updates, or -1 if not yet known
+     */
+    public long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * @return local time the next update is expected to be available, or -1
+     *         if not yet known
+     */
+    public long getNextExpected() {
+        if (!isKnown()) {
+            return -1;
+        }
+
+        return mPublished + mInterval + mOffset;
+    }
+}
@@ -0,0 +1,161 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Process-wide pooled HTTP client shared by every GtfsRealTimeFeed so that
+ * keep-alive connections and TLS sessions survive between polls.
+ */
+public class FeedHttpClient {
+
+    public static final int  DEFAULT_MAX_PER_ROUTE = 4;
+    public static final int  DEFAULT_MAX_TOTAL     = 200;
+    public static final long DEFAULT_IDLE_MS       = 60000;
+
+    private static int  sMaxPerRoute = DEFAULT_MAX_PER_ROUTE;
+    private static int  sMaxTotal    = DEFAULT_MAX_TOTAL;
+    private static long sIdleMs      = DEFAULT_IDLE_MS;
+
+    private static FeedHttpClient sInstance;
+
+    /**
+     * Must be called before the first call to getInstance() to take effect.
+     */
+    public static synchronized void configure(int maxPerRoute, int maxTotal, long idleMs) {
+        sMaxPerRoute = maxPerRoute;
+        sMaxTotal = Math.max(maxTotal, maxPerRoute);
+        sIdleMs = idleMs;
+    }
+
+    public static synchronized FeedHttpClient getInstance() throws NoSuchAlgorithmException, KeyManagementException {
+        if (sInstance == null) {
+            sInstance = new FeedHttpClient(sMaxPerRoute, sMaxTotal, sIdleMs);
+        }
+
+        return sInstance;
+    }
+
+    public static synchronized void shutdown() {
+        if (sInstance != null) {
+            sInstance.close();
+            sInstance = null;
+        }
+    }
+
+    private PoolingHttpClientConnectionManager mConnectionManager;
+    private CloseableHttpClient                mHttpClient;
+    private IdleConnectionMonitor              mMonitor;
+
+    private FeedHttpClient(int maxPerRoute, int maxTotal, long idleMs) throws NoSuchAlgorithmException, KeyManagementException {
+        // A single SSLContext means a single client session cache, so
+        // reconnects to the same host can resume instead of renegotiating.
+        SSLContext sslContext = SSLContext.getInstance("SSL");
+
+        sslContext.init(null, new TrustManager[] { new javax.net.ssl.X509TrustManager() {
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return null;
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
+            }
+
+            @Override
+            public void checkClientTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
+            }
+        } }, new SecureRandom());
+
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory> create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build();
+
+        mConnectionManager = new PoolingHttpClientConnectionManager(registry);
+        mConnectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        mConnectionManager.setMaxTotal(maxTotal);
+
+        HttpClientBuilder builder = HttpClientBuilder.create();
+        builder.setConnectionManager(mConnectionManager);
+        // GtfsRealTimeFeed decodes gzip/deflate itself while streaming
+        builder.disableContentCompression();
+
+        mHttpClient = builder.build();
+
+        if (idleMs > 0) {
+            mMonitor = new IdleConnectionMonitor(mConnectionManager, idleMs);
+            mMonitor.start();
+        }
+    }
+
+    /**
+     * The caller must close the returned response (or fully consume its
+     * entity) so the connection is released back to the pool.
+     */
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        return mHttpClient.execute(request);
+    }
+
+    private void close() {
+        if (mMonitor != null) {
+            mMonitor.interrupt();
+        }
+
+        try {
+            mHttpClient.close();
+        } catch (IOException e) {
+        }
+
+        mConnectionManager.shutdown();
+    }
+
+    private static class IdleConnectionMonitor extends Thread {
+        private PoolingHttpClientConnectionManager mConnectionManager;
+        private long mIdleMs;
+
+        public IdleConnectionMonitor(PoolingHttpClientConnectionManager connectionManager, long idleMs) {
+            super("FeedHttpClient-idle");
+            setDaemon(true);
+
+            mConnectionManager = connectionManager;
+            mIdleMs = idleMs;
+        }
+
+        @Override
+        public void run() {
+            long sleepMs = Math.max(1000, mIdleMs / 2);
+
+            while (true) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                mConnectionManager.closeExpiredConnections();
+                mConnectionManager.closeIdleConnections(mIdleMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Walks the FeedMessage wire format one FeedEntity at a time, so only the
+ * encoded bytes and the current entity are held in memory instead of the
+ * whole FeedMessage object graph.
+ *
+ * The constructor does a cheap scan that decodes the header and counts
+ * entities by type without decoding their bodies.
+ */
+public class FeedMessageReader {
+
+    private static final int HEADER_TAG = makeTag(FeedMessage.HEADER_FIELD_NUMBER);
+    private static final int ENTITY_TAG = makeTag(FeedMessage.ENTITY_FIELD_NUMBER);
+
+    private static final int TRIP_UPDATE_TAG = makeTag(FeedEntity.TRIP_UPDATE_FIELD_NUMBER);
+    private static final int VEHICLE_TAG     = makeTag(FeedEntity.VEHICLE_FIELD_NUMBER);
+    private static final int ALERT_TAG       = makeTag(FeedEntity.ALERT_FIELD_NUMBER);
+
+    private static int makeTag(int fieldNumber) {
+        return (fieldNumber << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    }
+
+    private byte[] mData;
+    private int    mLength;
+    private long   mFetchedTime = System.currentTimeMillis();
+
+    private FeedHeader mHeader;
+
+    private int mNumEntities         = 0;
+    private int mNumAlerts           = 0;
+    private int mNumTripUpdates      = 0;
+    private int mNumVehiclePositions = 0;
+
+    private CodedInputStream mInput;
+    private int mEntityOffset = 0;
+    private int mEntityLength = 0;
+
+    private boolean mHasAlert;
+    private boolean mHasTripUpdate;
+    private boolean mHasVehicle;
+
+    public FeedMessageReader(byte[] data, int length) throws IOException {
+        mData = data;
+        mLength = length;
+
+        scan();
+        rewind();
+    }
+
+    public FeedHeader getHeader() {
+        return mHeader;
+    }
+
+    public int getNumEntities() {
+        return mNumEntities;
+    }
+
+    public int getNumAlerts() {
+        return mNumAlerts;
+    }
+
+    public int getNumTripUpdates() {
+        return mNumTripUpdates;
+    }
+
+    public int getNumVehiclePositions() {
+        return mNumVehiclePositions;
+    }
+
+    /**
+     * Restarts entity iteration from the beginning of the message.
+     */
+    public void rewind() {
+        mInput = newInput();
+    }
+
+    /**
+     * Advances to the next entity without decoding it.
+     *
+     * @return false once the message is exhausted
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int tag = mInput.readTag();
+
+            if (tag == 0) {
+                mEntityLength = 0;
+                return false;
+            }
+
+            if (tag == ENTITY_TAG) {
+                mEntityLength = mInput.readRawVarint32();
+                mEntityOffset = mInput.getTotalBytesRead();
+
+                int oldLimit = mInput.pushLimit(mEntityLength);
+                scanEntity(mInput);
+                mInput.popLimit(oldLimit);
+
+                return true;
+            }
+
+            mInput.skipField(tag);
+        }
+    }
+
+    public boolean hasAlert() {
+        return mHasAlert;
+    }
+
+    public boolean hasTripUpdate() {
+        return mHasTripUpdate;
+    }
+
+    public boolean hasVehicle() {
+        return mHasVehicle;
+    }
+
+    /**
+     * Decodes the entity the reader is positioned on.
+     */
+    public FeedEntity getEntity() throws IOException {
+        return FeedEntity.PARSER.parseFrom(mData, mEntityOffset, mEntityLength);
+    }
+
+    /**
+     * Raw buffer backing this reader, for decoding the current entity in
+     * place with getEntityOffset() and getEntityLength().
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Length of the encoded message in getData().
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * When the message was fetched, which is recorded with its rows. Defaults
+     * to when the reader was created.
+     */
+    public long getFetchedTime() {
+        return mFetchedTime;
+    }
+
+    public void setFetchedTime(long fetchedTime) {
+        mFetchedTime = fetchedTime;
+    }
+
+    public int getEntityOffset() {
+        return mEntityOffset;
+    }
+
+    public int getEntityLength() {
+        return mEntityLength;
+    }
+
+    /**
+     * @return the next entity, or null once the message is exhausted
+     */
+    public FeedEntity nextEntity() throws IOException {
+        return next() ? getEntity() : null;
+    }
+
+    /**
+     * Fully decodes the message. Only intended for callers that need the
+     * whole object graph; recording should use nextEntity() instead.
+     */
+    public FeedMessage toFeedMessage() throws IOException {
+        return FeedMessage.parseFrom(newInput());
+    }
+
+    private CodedInputStream newInput() {
+        CodedInputStream input = CodedInputStream.newInstance(mData, 0, mLength);
+        input.setSizeLimit(Integer.MAX_VALUE);
+
+        return input;
+    }
+
+    private void scan() throws IOException {
+        CodedInputStream input = newInput();
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            if (tag == HEADER_TAG) {
+                mHeader = input.readMessage(FeedHeader.PARSER, ExtensionRegistryLite.getEmptyRegistry());
+            }
+            else if (tag == ENTITY_TAG) {
+                int length = input.readRawVarint32();
+                int oldLimit = input.pushLimit(length);
+
+                scanEntity(input);
+
+                input.popLimit(oldLimit);
+                mNumEntities++;
+
+                if (mHasTripUpdate) {
+                    mNumTripUpdates++;
+                }
+
+                if (mHasVehicle) {
+                    mNumVehiclePositions++;
+                }
+
+                if (mHasAlert) {
+                    mNumAlerts++;
+                }
+            }
+            else {
+                input.skipField(tag);
+            }
+        }
+
+        if (mHeader == null) {
+            mHeader = FeedHeader.getDefaultInstance();
+        }
+    }
+
+    private void scanEntity(CodedInputStream input) throws IOException {
+        mHasTripUpdate = false;
+        mHasVehicle = false;
+        mHasAlert = false;
+
+        while (true) {
+            int tag = input.readTag();
+
+            if (tag == 0) {
+                break;
+            }
+
+            if (tag == TRIP_UPDATE_TAG) {
+                mHasTripUpdate = true;
+            }
+            else if (tag == VEHICLE_TAG) {
+                mHasVehicle = true;
+            }
+            else if (tag == ALERT_TAG) {
+                mHasAlert = true;
+            }
+
+            input.skipField(tag);
+        }
+    }
+}
@@ -0,0 +1,747 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Polls a group of feeds and records them in a single transaction. Each run()
+ * fetches once and passes any changed feeds to the FeedScheduler's recorder
+ * workers, after which the runner reschedules itself.
+ */
+public class FeedRunner implements Runnable {
+	private long mDefaultInterval, mCurrentInterval, mMaxBackoff;
+	private List<GtfsRealTimeFeed> mFeeds = new ArrayList<GtfsRealTimeFeed>();
+	private Map<GtfsRealTimeFeed, CircuitBreaker> mBreakers = new HashMap<GtfsRealTimeFeed, CircuitBreaker>();
+	private int mBreakerThreshold = CircuitBreaker.DEFAULT_THRESHOLD;
+	private Backoff mRecordBackoff;
+	private Backoff mRetryBackoff;
+	private Backoff mConnectBackoff;
+	private long mConnectRetryAt = 0;
+	private FeedSpool mSpool;
+	private long mReplayFailedId;
+	private int mReplayFailures = 0;
+	private int mSkippedCycles = 0;
+	private List<GtfsRealTimeFeed> mModifiedFeeds;
+	private long mFetchTimeout = DEFAULT_FETCH_TIMEOUT_MS;
+	private boolean mAdaptive = false;
+	private long mMinPollInterval, mMaxPollInterval;
+	private Random mRandom = new Random();
+	private double mSlowCycle = DEFAULT_SLOW_CYCLE;
+	private CycleTrace mTrace;
+	private long mQueuedNanos;
+
+	public static final long DEFAULT_FETCH_TIMEOUT_MS = 60000;
+	public static final long DEFAULT_MAX_BACKOFF_MS = 600000;
+	public static final double DEFAULT_SLOW_CYCLE = 1.0;
+
+	// A failed record is retried after 1s, 2s, 4s and 8s (less jitter)
+	private static final int MAX_RECORD_RETRIES = 4;
+	private static final long RETRY_BASE_MS = 1000;
+
+	// A spooled cycle that fails this many replays on a working connection
+	// is dropped, so an error that isn't classified as bad data can't
+	// block the spool forever
+	private static final int MAX_REPLAY_ATTEMPTS = 5;
+
+	// Polls are made this long after an update is expected, plus jitter
+	private static final long POLL_MARGIN_MS = 1000;
+	private static final long MAX_JITTER_MS = 2000;
+
+	private FeedScheduler mScheduler;
+	private RecorderPool mRecorderPool;
+	private Logger mLogger;
+
+	public FeedRunner(FeedScheduler scheduler, long intervalMs) {
+	    mScheduler = scheduler;
+	    mRecorderPool = scheduler.getRecorderPool();
+	    mLogger = scheduler.getLogger();
+		mDefaultInterval = intervalMs;
+		mCurrentInterval = intervalMs;
+		mMaxBackoff = Math.max(intervalMs, DEFAULT_MAX_BACKOFF_MS);
+		mRecordBackoff = new Backoff(mDefaultInterval, mMaxBackoff);
+		mRetryBackoff = new Backoff(RETRY_BASE_MS, mMaxBackoff);
+		mConnectBackoff = new Backoff(RETRY_BASE_MS, mMaxBackoff);
+	}
+
+	public void addFeed(GtfsRealTimeFeed feed) {
+		mFeeds.add(feed);
+		mBreakers.put(feed, new CircuitBreaker(mDefaultInterval, mMaxBackoff, mBreakerThreshold));
+		feed.setLogger(mLogger);
+	}
+
+	/**
+	 * Failing feeds, and recording after a lost connection, are retried with
+	 * exponential backoff up to maxBackoffMs. A feed that fails threshold
+	 * times in a row is parked and only probed every maxBackoffMs.
+	 */
+	public void setBackoff(long maxBackoffMs, int threshold) {
+	    mMaxBackoff = Math.max(mDefaultInterval, maxBackoffMs);
+	    mBreakerThreshold = threshold;
+	    mRecordBackoff = new Backoff(mDefaultInterval, mMaxBackoff);
+	    mRetryBackoff = new Backoff(RETRY_BASE_MS, mMaxBackoff);
+	    mConnectBackoff = new Backoff(RETRY_BASE_MS, mMaxBackoff);
+
+	    for (GtfsRealTimeFeed feed : mFeeds) {
+	        mBreakers.put(feed, new CircuitBreaker(mDefaultInterval, mMaxBackoff, mBreakerThreshold));
+	    }
+	}
+
+	/**
+	 * Maximum time to wait for all feeds of a cycle to load.
+	 */
+	public void setFetchTimeout(long fetchTimeoutMs) {
+	    mFetchTimeout = fetchTimeoutMs;
+	}
+
+	/**
+	 * Polls shortly after each feed's next expected update instead of at the
+	 * fixed interval, once its publishing cadence has been learned.
+	 */
+	public void setAdaptive(long minIntervalMs, long maxIntervalMs) {
+	    mAdaptive = true;
+	    mMinPollInterval = minIntervalMs;
+	    mMaxPollInterval = Math.max(minIntervalMs, maxIntervalMs);
+	}
+
+	/**
+	 * Cycles that can't be recorded are kept here until the database is
+	 * back, rather than lost.
+	 */
+	public void setSpool(FeedSpool spool) {
+	    mSpool = spool;
+	}
+
+	/**
+	 * A cycle taking longer than this fraction of the refresh interval has
+	 * its full timing trace logged. 0 disables tracing slow cycles.
+	 */
+	public void setSlowCycle(double fraction) {
+	    mSlowCycle = fraction;
+	}
+
+	public int getSkippedCycles() {
+	    return mSkippedCycles;
+	}
+
+	/**
+	 * Fetch stage, run on the scheduler's threads. Changed feeds are handed
+	 * to the scheduler's recorder workers; the next cycle isn't scheduled
+	 * until they have been recorded, since loading reuses the feed buffers.
+	 */
+	@Override
+	public void run() {
+	    mTrace = new CycleTrace();
+
+	    try {
+	        long start = System.nanoTime();
+
+	        mModifiedFeeds = fetch();
+	        mTrace.add("fetch", null, start);
+
+	        if (mModifiedFeeds.isEmpty()) {
+	            mSkippedCycles++;
+	            mLogger.info(String.format("No feeds modified, skipping cycle (%d skipped)", mSkippedCycles));
+
+	            for (GtfsRealTimeFeed feed : mFeeds) {
+	                Metrics.SKIPPED_CYCLES.inc(feed.getUri().toString());
+	            }
+
+	            scheduleNext(true);
+	        }
+	        else {
+	            // Blocks while the record queue is full
+	            mQueuedNanos = System.nanoTime();
+	            mScheduler.record(this);
+	        }
+	    }
+	    catch (InterruptedException e) {
+	        // Only a scheduler shutdown stops the runner
+	        mLogger.info("Interrupted, stopping");
+	        scheduleNext(false);
+	    }
+	    catch (RejectedExecutionException e) {
+	        mLogger.info("Scheduler shut down, stopping");
+	        scheduleNext(false);
+	    }
+	    catch (Exception e) {
+	        mLogger.warning(getString(e));
+	        countErrors(mFeeds, "cycle");
+	        mModifiedFeeds = null;
+	        mCurrentInterval = mRecordBackoff.next();
+	        scheduleNext(true);
+	    }
+	}
+
+	/**
+	 * Loads every feed concurrently. Feeds that fail or don't finish within
+	 * the fetch timeout are left out of this cycle without holding up the
+	 * others, as are feeds still backing off from earlier failures.
+	 */
+	private List<GtfsRealTimeFeed> fetch() throws InterruptedException {
+		List<GtfsRealTimeFeed> modifiedFeeds = new ArrayList<GtfsRealTimeFeed>();
+		List<Future<Boolean>> loads = new ArrayList<Future<Boolean>>();
+		long now = System.currentTimeMillis();
+		final CycleTrace trace = mTrace;
+
+		for (final GtfsRealTimeFeed feed : mFeeds) {
+		    if (!mBreakers.get(feed).allows(now)) {
+		        loads.add(null);
+		        continue;
+		    }
+
+		    loads.add(mScheduler.fetch(new Callable<Boolean>() {
+		        @Override
+		        public Boolean call() throws Exception {
+		            long start = System.nanoTime();
+
+		            try {
+		                return feed.load(trace);
+		            }
+		            finally {
+		                trace.add("load", feed.getUri().toString(), start);
+		            }
+		        }
+		    }));
+		}
+
+		long deadline = System.currentTimeMillis() + mFetchTimeout;
+
+		for (int i = 0; i < mFeeds.size(); i++) {
+		    GtfsRealTimeFeed feed = mFeeds.get(i);
+		    Future<Boolean> load = loads.get(i);
+
+		    if (load == null) {
+		        continue;
+		    }
+
+		    boolean modified;
+
+			try {
+				modified = load.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+			    feed.abort();
+			    load.cancel(true);
+			    failed(feed, "timeout", String.format("Timed out after %dms", mFetchTimeout), null);
+			    continue;
+			} catch (ExecutionException e) {
+			    failed(feed, "fetch", e.getCause().toString(), e.getCause());
+			    continue;
+			}
+
+			if (mBreakers.get(feed).success()) {
+			    mLogger.warning(String.format("Circuit closed, feed recovered: %s", feed.getUri().toString()));
+			}
+
+			if (!modified) {
+			    continue;
+			}
+
+			if (feed.isUnchanged()) {
+			    mLogger.info(String.format("Unchanged content: %s", feed.getUri().toString()));
+			}
+			else {
+			    modifiedFeeds.add(feed);
+			}
+		}
+
+		return modifiedFeeds;
+	}
+
+	/**
+	 * Backs off a feed after a failed load. Stack traces are only logged
+	 * while the circuit is closed, so a parked feed logs one line per probe.
+	 */
+	private void failed(GtfsRealTimeFeed feed, String type, String reason, Throwable e) {
+	    CircuitBreaker breaker = mBreakers.get(feed);
+	    String uri = feed.getUri().toString();
+	    boolean wasOpen = breaker.isOpen();
+	    long now = System.currentTimeMillis();
+
+	    Metrics.ERRORS.inc(uri, type);
+
+	    if (breaker.failure(now)) {
+	        mLogger.warning(String.format("Circuit open after %d failures, parking feed: %s (%s)", breaker.getFailures(), uri, reason));
+	    }
+	    else if (wasOpen) {
+	        mLogger.info(String.format("Probe failed: %s (%s)", uri, reason));
+	    }
+	    else {
+	        mLogger.info(e == null ? reason : getString(e));
+	    }
+
+	    mLogger.info(String.format("Retrying %s in %dms (%d failures)", uri, breaker.getRetryAt() - now, breaker.getFailures()));
+	}
+
+	/**
+	 * Record stage, run on one of the scheduler's recorder workers. A cycle
+	 * that fails for a reason other than bad data is retried with the
+	 * messages already fetched, so a brief failure doesn't cost a refetch,
+	 * let alone the runner. A lost connection, or earlier cycles already
+	 * waiting in the spool, sends it straight to the spool instead, to be
+	 * replayed once the database is back, so spooling doesn't hold up the
+	 * next fetch.
+	 */
+	void record() {
+	    SqlError error;
+
+	    mTrace.add("queue", null, mQueuedNanos);
+
+	    try {
+	        error = record(mModifiedFeeds);
+	    }
+	    catch (Exception e) {
+	        mLogger.warning(getString(e));
+	        error = null;
+	    }
+
+	    boolean spooling = mSpool != null && (!mSpool.isEmpty() || error == SqlError.CONNECTION);
+
+	    if (error != null && !spooling && mRetryBackoff.getAttempts() < MAX_RECORD_RETRIES) {
+	        long delay = mRetryBackoff.next();
+
+	        mLogger.info(String.format("Retrying record in %dms (attempt %d of %d)", delay, mRetryBackoff.getAttempts(), MAX_RECORD_RETRIES));
+	        mQueuedNanos = System.nanoTime();
+	        mScheduler.record(this, delay);
+	        return;
+	    }
+
+	    if (error != null && !spool(mModifiedFeeds)) {
+	        // Give up on these messages and back off before fetching again
+	        mLogger.warning(String.format("Dropping cycle after %d retries", mRetryBackoff.getAttempts()));
+	        countErrors(mModifiedFeeds, "dropped");
+	        mCurrentInterval = mRecordBackoff.next();
+	    }
+
+	    mRetryBackoff.reset();
+	    mModifiedFeeds = null;
+	    scheduleNext(true);
+	}
+
+	/**
+	 * @return true if the cycle was stored in the spool
+	 */
+	private boolean spool(List<GtfsRealTimeFeed> modifiedFeeds) {
+	    if (mSpool == null) {
+	        return false;
+	    }
+
+	    List<FeedMessageReader> readers = new ArrayList<FeedMessageReader>();
+
+	    for (GtfsRealTimeFeed feed : modifiedFeeds) {
+	        readers.add(feed.getReader());
+	    }
+
+	    try {
+	        if (!mSpool.append(readers.get(0).getFetchedTime(), readers)) {
+	            mLogger.warning(String.format("Spool full, dropping cycle: %s", mSpool.getFile().getPath()));
+	            return false;
+	        }
+	    } catch (IOException e) {
+	        mLogger.warning(getString(e));
+	        return false;
+	    }
+
+	    mLogger.info(String.format("Spooled cycle, %d bytes waiting: %s", mSpool.getSize(), mSpool.getFile().getPath()));
+	    Metrics.SPOOL_BYTES.set(mSpool.getSize(), mSpool.getFile().getPath());
+
+	    // Stored durably, so it isn't spooled again if the feed hasn't changed
+	    for (GtfsRealTimeFeed feed : modifiedFeeds) {
+	        feed.markRecorded();
+	    }
+
+	    // Keep fetching at the normal rate so no cycles are missed
+	    mRecordBackoff.reset();
+	    mCurrentInterval = mDefaultInterval;
+
+	    return true;
+	}
+
+	/**
+	 * @return why the cycle should be retried or spooled, or null if it was
+	 *         recorded or isn't worth retrying
+	 */
+	private SqlError record(List<GtfsRealTimeFeed> modifiedFeeds) {
+	    RecorderPool.PooledRecorder pooled;
+	    long start = System.nanoTime();
+
+	    // Cycles are being spooled and the database was unreachable moments
+	    // ago, so don't hold up this cycle with another connect attempt
+	    if (mSpool != null && !mSpool.isEmpty() && System.currentTimeMillis() < mConnectRetryAt) {
+	        mLogger.info(String.format("Database unavailable, next connect in %dms", mConnectRetryAt - System.currentTimeMillis()));
+	        return SqlError.CONNECTION;
+	    }
+
+	    try {
+	        pooled = mRecorderPool.acquire();
+	        mTrace.add("acquire", null, start);
+	    } catch (SQLException se) {
+	        SqlError error = SqlError.classify(se);
+
+	        mLogger.warning(String.format("Unable to connect: %s", se.toString()));
+	        countErrors(modifiedFeeds, error.name().toLowerCase());
+	        connectFailed(error);
+
+	        return error == SqlError.DATA ? null : error;
+	    } catch (InterruptedException e) {
+	        mLogger.info(getString(e));
+	        return null;
+	    }
+
+	    GtfsRealTimeSqlRecorder recorder = pooled.getRecorder();
+	    recorder.setTrace(mTrace);
+
+		try {
+		    if (mSpool != null && !mSpool.isEmpty()) {
+		        start = System.nanoTime();
+		        replay(recorder);
+		        mTrace.add("replay", mSpool.getFile().getPath(), start);
+		    }
+
+		    List<FeedMessageReader> readers = new ArrayList<FeedMessageReader>();
+		    List<String> names = new ArrayList<String>();
+
+		    for (GtfsRealTimeFeed feed : modifiedFeeds) {
+		        readers.add(feed.getReader());
+		        names.add(feed.getUri().toString());
+		    }
+
+			record(recorder, readers, names, null);
+
+			long now = System.currentTimeMillis();
+
+			for (GtfsRealTimeFeed feed : modifiedFeeds) {
+			    feed.markRecorded();
+
+			    long published = feed.getPublishedTime();
+
+			    if (published > 0) {
+			        String uri = feed.getUri().toString();
+
+			        Metrics.LAST_RECORDED.set(published / 1000.0, uri);
+			        Metrics.RECORD_LAG_SECONDS.observe(Math.max(0, now - published) / 1000.0, uri);
+			    }
+			}
+		} catch (SQLException se) {
+		    SqlError error = SqlError.classify(se);
+
+		    mLogger.warning(String.format("Database error (%s): %s", error, getString(se)));
+		    countErrors(modifiedFeeds, error.name().toLowerCase());
+		    recorder.setTrace(null);
+		    release(pooled, error);
+		    connectFailed(error);
+
+		    return error == SqlError.DATA ? null : error;
+		}
+
+		recorder.setTrace(null);
+		mRecorderPool.release(pooled);
+		mRecordBackoff.reset();
+		mConnectBackoff.reset();
+		mConnectRetryAt = 0;
+		mCurrentInterval = mDefaultInterval;
+
+		return null;
+	}
+
+	/**
+	 * Holds off connecting again after the connection was lost.
+	 */
+	private void connectFailed(SqlError error) {
+	    if (error == SqlError.CONNECTION) {
+	        mConnectRetryAt = System.currentTimeMillis() + mConnectBackoff.next();
+	    }
+	}
+
+	/**
+	 * Records the spooled cycles in order, each in its own transaction. A
+	 * cycle the database rejects outright, or that keeps failing to replay,
+	 * is dropped so it can't block the rest.
+	 */
+	private void replay(GtfsRealTimeSqlRecorder recorder) throws SQLException {
+	    String spool = mSpool.getFile().getName();
+	    int replayed = 0;
+
+	    while (true) {
+	        FeedSpool.Cycle cycle;
+
+	        try {
+	            cycle = mSpool.peek();
+	        } catch (IOException e) {
+	            mLogger.warning(String.format("Discarding unreadable spool: %s", getString(e)));
+	            mSpool.clear();
+	            break;
+	        }
+
+	        if (cycle == null) {
+	            break;
+	        }
+
+	        try {
+	            if (!record(recorder, cycle.getReaders(), null, cycle)) {
+	                mLogger.warning(String.format("Skipping spooled cycle %016x, already replayed", cycle.getId()));
+	            }
+	        } catch (SQLException e) {
+	            if (SqlError.classify(e) != SqlError.DATA) {
+	                if (replayFailed(cycle)) {
+	                    // Dropped, but the transaction is left for the caller
+	                    // to roll back or discard along with the connection
+	                    removeCycle();
+	                }
+
+	                throw e;
+	            }
+
+	            mLogger.warning(String.format("Dropping spooled cycle: %s", getString(e)));
+	            recorder.rollback();
+	        }
+
+	        removeCycle();
+	        replayed++;
+	    }
+
+	    if (mSpool.isEmpty()) {
+	        try {
+	            recorder.clearReplayed(spool);
+	        } catch (SQLException e) {
+	            // Harmless, the ids are random and cleared again next time
+	            mLogger.info(getString(e));
+	        }
+	    }
+
+	    mLogger.info(String.format("Replayed %d spooled cycles", replayed));
+	    Metrics.SPOOL_BYTES.set(mSpool.getSize(), mSpool.getFile().getPath());
+	}
+
+	/**
+	 * @return true if the cycle has now failed too many replays and should
+	 *         be dropped
+	 */
+	private boolean replayFailed(FeedSpool.Cycle cycle) {
+	    if (mReplayFailures == 0 || mReplayFailedId != cycle.getId()) {
+	        mReplayFailedId = cycle.getId();
+	        mReplayFailures = 0;
+	    }
+
+	    if (++mReplayFailures < MAX_REPLAY_ATTEMPTS) {
+	        return false;
+	    }
+
+	    mLogger.warning(String.format("Dropping spooled cycle %016x after %d failed replays", cycle.getId(), mReplayFailures));
+	    Metrics.ERRORS.inc(mSpool.getFile().getPath(), "dropped");
+	    mReplayFailures = 0;
+
+	    return true;
+	}
+
+	/**
+	 * Removes the cycle last returned by the spool's peek().
+	 */
+	private void removeCycle() {
+	    try {
+	        mSpool.remove();
+	    } catch (IOException e) {
+	        mLogger.warning(getString(e));
+	    }
+	}
+
+	/**
+	 * Records one cycle's messages in a single transaction.
+	 *
+	 * @param names feed of each message for the trace and metrics, or null
+	 *            when replaying
+	 * @param cycle the spooled cycle being replayed, or null
+	 * @return false if the spooled cycle had already been replayed
+	 */
+	private boolean record(GtfsRealTimeSqlRecorder recorder, List<FeedMessageReader> readers, List<String> names, FeedSpool.Cycle cycle) throws SQLException {
+	    recorder.begin();
+
+	    if (cycle != null && !recorder.markReplayed(mSpool.getFile().getName(), cycle.getId())) {
+	        recorder.rollback();
+	        return false;
+	    }
+
+	    for (int i = 0; i < readers.size(); i++) {
+	        long start = System.nanoTime();
+
+	        try {
+	            // Replayed messages are labelled with their spool
+	            recorder.record(readers.get(i), names == null ? mSpool.getFile().getPath() : names.get(i));
+	            mTrace.add("record", names == null ? null : names.get(i), start);
+	        } catch (SQLException e) {
+	            // Only bad data leaves the transaction worth committing
+	            if (SqlError.classify(e) != SqlError.DATA) {
+	                throw e;
+	            }
+
+	            mLogger.info(getString(e));
+	        } catch (Exception e) {
+	            mLogger.info(getString(e));
+	        }
+	    }
+
+	    int openQueries = recorder.getNumOpenQueries();
+
+	    if (openQueries > 0) {
+	        // Invalid transaction state, so the copies are cancelled and the cycle retried
+	        throw new SQLException(String.format("%d copies left open", openQueries), "25000");
+	    }
+
+	    long start = System.nanoTime();
+
+	    recorder.commit();
+	    mTrace.add("commit", null, start);
+
+	    return true;
+	}
+
+	/**
+	 * Returns a recorder to the pool after a failed cycle. Its connection is
+	 * kept if the cycle can be rolled back, otherwise it's closed so the next
+	 * attempt reconnects.
+	 */
+	private void release(RecorderPool.PooledRecorder pooled, SqlError error) {
+	    if (error != SqlError.CONNECTION) {
+	        try {
+	            pooled.getRecorder().rollback();
+	            mRecorderPool.release(pooled);
+	            return;
+	        } catch (SQLException e) {
+	            mLogger.info(String.format("Rollback failed: %s", e.toString()));
+	        }
+	    }
+
+	    mRecorderPool.discard(pooled);
+	}
+
+	private void countErrors(List<GtfsRealTimeFeed> feeds, String type) {
+	    for (GtfsRealTimeFeed feed : feeds) {
+	        Metrics.ERRORS.inc(feed.getUri().toString(), type);
+	    }
+	}
+
+	/**
+	 * Logs a summary of the cycle just finished, and its full trace if it
+	 * was slow.
+	 */
+	private void finishTrace() {
+	    if (mTrace == null) {
+	        return;
+	    }
+
+	    long elapsed = mTrace.getElapsedMillis();
+
+	    mLogger.info(String.format("Cycle took %dms: %s", elapsed, mTrace.getSummary()));
+
+	    if (mSlowCycle > 0 && elapsed > mDefaultInterval * mSlowCycle) {
+	        mLogger.warning(String.format("Slow cycle took %dms, refresh is %dms:%n%s", elapsed, mDefaultInterval, mTrace.getDetail()));
+	    }
+
+	    mTrace = null;
+	}
+
+	private void scheduleNext(boolean keepRunning) {
+	    finishTrace();
+
+	    if (keepRunning) {
+	        long delay = getNextDelay();
+	        long retryAt = getEarliestRetry();
+
+	        // Nothing to do until a feed's backoff has passed
+	        if (retryAt > 0) {
+	            delay = Math.max(delay, retryAt - System.currentTimeMillis());
+	        }
+
+	        mLogger.info(String.format("Sleeping %dms", delay));
+	        mScheduler.schedule(this, delay);
+	    }
+	    else {
+	        for (GtfsRealTimeFeed feed : mFeeds) {
+	            feed.setLogger(null);
+	        }
+
+	        mScheduler.finished(this);
+	    }
+	}
+
+	/**
+	 * In adaptive mode, the time until the first of this runner's feeds is
+	 * expected to update. Falls back to the current interval while a feed's
+	 * cadence is unknown or the interval has been extended after an error.
+	 */
+	private long getNextDelay() {
+	    if (!mAdaptive || mRecordBackoff.getAttempts() > 0) {
+	        return mCurrentInterval;
+	    }
+
+	    long now = System.currentTimeMillis();
+	    long next = -1;
+
+	    for (GtfsRealTimeFeed feed : mFeeds) {
+	        FeedCadence cadence = feed.getCadence();
+
+	        if (!cadence.isKnown()) {
+	            return mCurrentInterval;
+	        }
+
+	        long expected = cadence.getNextExpected();
+	        long delay;
+
+	        if (expected + POLL_MARGIN_MS >= now) {
+	            delay = expected + POLL_MARGIN_MS - now;
+	        }
+	        else {
+	            // Late, so back off in proportion to how overdue it is rather
+	            // than polling a stalled producer at the minimum interval
+	            delay = (now - expected) / 2;
+	        }
+
+	        next = next < 0 ? delay : Math.min(next, delay);
+	    }
+
+	    // Spreads out runners whose feeds publish at the same moment
+	    next += mRandom.nextInt((int) Math.min(MAX_JITTER_MS, next / 10) + 1);
+
+	    return Math.max(mMinPollInterval, Math.min(mMaxPollInterval, next));
+	}
+
+	/**
+	 * @return earliest time one of the feeds may be loaded again, or 0 if
+	 *         any feed isn't being held back
+	 */
+	private long getEarliestRetry() {
+	    long earliest = 0;
+
+	    for (CircuitBreaker breaker : mBreakers.values()) {
+	        long retryAt = breaker.getRetryAt();
+
+	        if (retryAt == 0) {
+	            return 0;
+	        }
+
+	        earliest = earliest == 0 ? retryAt : Math.min(earliest, retryAt);
+	    }
+
+	    return earliest;
+	}
+
+    private String getString(Throwable e) {
+        StringWriter sw = new StringWriter();
+        e.printStackTrace(new PrintWriter(sw));
+
+        return sw.toString();
+    }
+}
@@ -0,0 +1,179 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs every FeedRunner on one shared pool of threads. Each runner performs
+ * a single cycle per task and schedules its next cycle itself, so idle feeds
+ * hold no thread. Once every runner has stopped the pool and the recorder
+ * pool are shut down, letting the process exit.
+ *
+ * Fetching and recording are separate stages: runners fetch and parse on
+ * the scheduler threads, then queue their changed feeds for a fixed number
+ * of recorder workers. A slow database therefore doesn't hold up fetches
+ * until the queue fills, at which point fetch threads wait for room.
+ */
+public class FeedScheduler {
+
+    public static final int DEFAULT_THREADS = 8;
+
+    // How soon a delayed record retry tries again when the queue is full
+    private static final long QUEUE_RETRY_MS = 250;
+
+    private ScheduledExecutorService mExecutor;
+    private ThreadPoolExecutor mRecorders;
+    private ThreadPoolExecutor mFetchers;
+    private RecorderPool mRecorderPool;
+    private Logger mLogger;
+    private int mActive = 0;
+
+    /**
+     * @param recorders number of recorder workers, normally the size of the
+     *            recorder pool so workers never wait for a connection
+     */
+    public FeedScheduler(Logger logger, RecorderPool recorderPool, int threads, int recorders) {
+        mLogger = logger;
+        mRecorderPool = recorderPool;
+        mExecutor = Executors.newScheduledThreadPool(Math.max(1, threads));
+
+        // Runs the individual loads of a runner's feeds. When every fetcher
+        // is busy loads wait in the queue, where the runner's fetch timeout
+        // still applies, rather than running on the runner's own thread. A
+        // runner queues at most one load per feed, so the queue is bounded
+        // by the number of feeds.
+        mFetchers = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mFetchers.allowCoreThreadTimeOut(true);
+
+        recorders = Math.max(1, recorders);
+
+        mRecorders = new ThreadPoolExecutor(recorders, recorders, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(recorders * 2), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("Recorders are shut down");
+                }
+
+                // Backpressure: wait for room instead of rejecting
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+
+                checkShutdown(executor, r);
+            }
+        });
+
+        // Tasks are also queued directly by offerRecord(), which doesn't
+        // start workers itself
+        mRecorders.prestartAllCoreThreads();
+    }
+
+    public RecorderPool getRecorderPool() {
+        return mRecorderPool;
+    }
+
+    public Logger getLogger() {
+        return mLogger;
+    }
+
+    public synchronized void start(FeedRunner runner) {
+        mActive++;
+        mExecutor.execute(runner);
+    }
+
+    /**
+     * Queues the runner's record stage, waiting while the queue is full.
+     */
+    void record(FeedRunner runner) {
+        mRecorders.execute(newRecordTask(runner));
+    }
+
+    /**
+     * Queues the runner's record stage again after a delay, to retry a
+     * failed cycle with the messages already fetched. This runs on the
+     * scheduler threads, so rather than wait for room in a full queue it
+     * tries again a little later.
+     */
+    void record(FeedRunner runner, long delayMs) {
+        final Runnable task = newRecordTask(runner);
+
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!offerRecord(task)) {
+                    mExecutor.schedule(this, QUEUE_RETRY_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false if the record queue is full
+     */
+    private boolean offerRecord(Runnable task) {
+        if (mRecorders.isShutdown()) {
+            throw new RejectedExecutionException("Recorders are shut down");
+        }
+
+        if (!mRecorders.getQueue().offer(task)) {
+            return false;
+        }
+
+        checkShutdown(mRecorders, task);
+
+        return true;
+    }
+
+    /**
+     * Takes back a task queued while the executor was shutting down, since
+     * its workers may already have drained the queue and exited.
+     */
+    private static void checkShutdown(ThreadPoolExecutor executor, Runnable task) {
+        if (executor.isShutdown() && executor.remove(task)) {
+            throw new RejectedExecutionException("Recorders are shut down");
+        }
+    }
+
+    private static Runnable newRecordTask(final FeedRunner runner) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                runner.record();
+            }
+        };
+    }
+
+    <T> Future<T> fetch(Callable<T> task) {
+        return mFetchers.submit(task);
+    }
+
+    void schedule(FeedRunner runner, long delayMs) {
+        mExecutor.schedule(runner, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void finished(FeedRunner runner) {
+        if (--mActive == 0) {
+            mLogger.info("All feeds stopped");
+            shutdown();
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+        mRecorders.shutdown();
+        mFetchers.shutdown();
+        mRecorderPool.close();
+    }
+}
@@ -0,0 +1,250 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Bounded on-disk queue of cycles that couldn't be recorded, e.g. while the
+ * database is down, so they can be replayed in order once it's back.
+ *
+ * Cycles are appended to a single file, each as a random id and its fetch
+ * time followed by the raw bytes of every message. Replay progress is kept
+ * in a small position file next to it, so a restart resumes where replay
+ * left off; the spool is deleted once fully replayed. A cycle cut short by
+ * a crash is discarded.
+ *
+ * The position file is only written after a replayed cycle commits, so a
+ * cycle can be handed out again; the id lets the replayer recognise it.
+ */
+public class FeedSpool {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final int MAGIC = 0x47525432;
+    private static final int HEADER_SIZE = 24;
+
+    private static Random sRandom = new Random();
+
+    private File mFile;
+    private File mPositionFile;
+    private long mMaxBytes;
+
+    private long mPosition = 0;
+    private long mNextPosition = -1;
+
+    public FeedSpool(File file, long maxBytes) throws IOException {
+        mFile = file;
+        mPositionFile = new File(file.getPath() + ".pos");
+        mMaxBytes = maxBytes;
+
+        if (mPositionFile.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(mPositionFile));
+
+            try {
+                mPosition = in.readLong();
+            }
+            catch (EOFException e) {
+                mPosition = 0;
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        // The spool was removed or replaced without its position file
+        if (mPosition > mFile.length()) {
+            clear();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * A spooled cycle's messages, and the id it was given when spooled.
+     */
+    public static class Cycle {
+
+        private long mId;
+        private List<FeedMessageReader> mReaders;
+
+        public long getId() {
+            return mId;
+        }
+
+        public List<FeedMessageReader> getReaders() {
+            return mReaders;
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return mPosition >= mFile.length();
+    }
+
+    /**
+     * @return number of bytes waiting to be replayed
+     */
+    public synchronized long getSize() {
+        return Math.max(0, mFile.length() - mPosition);
+    }
+
+    /**
+     * Appends a cycle's messages.
+     *
+     * @return false if the spool is full and the cycle was not stored
+     */
+    public synchronized boolean append(long fetchedTime, List<FeedMessageReader> readers) throws IOException {
+        long size = HEADER_SIZE;
+
+        for (FeedMessageReader reader : readers) {
+            size += 4 + reader.getLength();
+        }
+
+        if (mFile.length() + size > mMaxBytes) {
+            return false;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true), 65536));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(sRandom.nextLong());
+            out.writeLong(fetchedTime);
+            out.writeInt(readers.size());
+
+            for (FeedMessageReader reader : readers) {
+                out.writeInt(reader.getLength());
+                out.write(reader.getData(), 0, reader.getLength());
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the oldest cycle without removing it.
+     *
+     * @return the cycle, or null if the spool is empty
+     */
+    public synchronized Cycle peek() throws IOException {
+        if (isEmpty()) {
+            return null;
+        }
+
+        FileInputStream file = new FileInputStream(mFile);
+        boolean truncated = false;
+
+        try {
+            file.getChannel().position(mPosition);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 65536));
+            Cycle cycle = new Cycle();
+            cycle.mReaders = new ArrayList<FeedMessageReader>();
+            long position = mPosition;
+
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(String.format("Corrupt spool %s at %d", mFile.getPath(), mPosition));
+                }
+
+                cycle.mId = in.readLong();
+                long fetchedTime = in.readLong();
+                int count = in.readInt();
+                position += HEADER_SIZE;
+
+                for (int i = 0; i < count; i++) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    position += 4 + data.length;
+
+                    FeedMessageReader reader = new FeedMessageReader(data, data.length);
+                    reader.setFetchedTime(fetchedTime);
+                    cycle.mReaders.add(reader);
+                }
+            }
+            catch (EOFException e) {
+                // Partially written cycle, nothing after it can be read either
+                truncated = true;
+                return null;
+            }
+
+            mNextPosition = position;
+
+            return cycle;
+        }
+        finally {
+            file.close();
+
+            if (truncated) {
+                truncate(mPosition);
+            }
+        }
+    }
+
+    /**
+     * Removes the cycle returned by the last peek(), deleting the spool once
+     * it has all been replayed.
+     */
+    public synchronized void remove() throws IOException {
+        if (mNextPosition < 0) {
+            return;
+        }
+
+        mPosition = mNextPosition;
+        mNextPosition = -1;
+
+        if (isEmpty()) {
+            clear();
+            return;
+        }
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mPositionFile));
+
+        try {
+            out.writeLong(mPosition);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Discards everything in the spool.
+     */
+    public synchronized void clear() {
+        mFile.delete();
+        mPositionFile.delete();
+        mPosition = 0;
+        mNextPosition = -1;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+
+        try {
+            file.setLength(length);
+        }
+        finally {
+            file.close();
+        }
+
+        if (isEmpty()) {
+            clear();
+        }
+    }
+}
@@ -1,33 +1,33 @@
 package com.transitfeeds.gtfsrealtimetosql;
 
-import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
-
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.conn.ConnectTimeoutException;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.util.EntityUtils;
 
-import com.google.transit.realtime.GtfsRealtime;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.sun.org.apache.xml.internal.security.utils.Base64;
 
@@ -36,9 +36,24 @@ public class GtfsRealTimeFeed {
 	private URI mUri;
 	private String mUsername;
 	private String mPassword;
-	private FeedMessage mFeedMessage;
+	private FeedMessageReader mReader;
+	private byte[] mData;
+	private int mDataLength = 0;
 	private boolean mOutputHeaders = false;
 	
+	private String mETag;
+	private String mLastModified;
+	private String mLoadedETag;
+	private String mLoadedLastModified;
+	private int mNotModifiedCount = 0;
+	
+	private long mTimestamp = -1;
+	private long mContentHash = -1;
+	private long mRecordedTimestamp = -1;
+	private long mRecordedContentHash = -1;
+	
+	private FeedCadence mCadence = new FeedCadence();
+	
 	private Logger mLogger;
 
 	public GtfsRealTimeFeed(URI uri) {
@@ -58,12 +73,83 @@ public class GtfsRealTimeFeed {
 	    mOutputHeaders = flag;
 	}
 
-	public FeedMessage getFeedMessage() {
-		return mFeedMessage;
+	/**
+	 * Reader over the last loaded payload. It shares this feed's buffer, so
+	 * it is only valid until the next call to load().
+	 */
+	public FeedMessageReader getReader() {
+	    return mReader;
+	}
+	
+	public FeedMessage getFeedMessage() throws IOException {
+		return mReader == null ? null : mReader.toFeedMessage();
+	}
+	
+	public URI getUri() {
+	    return mUri;
+	}
+	
+	/**
+	 * Publishing cadence learned from the messages loaded so far.
+	 */
+	public FeedCadence getCadence() {
+	    return mCadence;
+	}
+	
+	/**
+	 * Number of polls answered with 304 Not Modified since this feed was created.
+	 */
+	public int getNotModifiedCount() {
+	    return mNotModifiedCount;
+	}
+	
+	/**
+	 * Whether the last loaded message is the one already recorded, either
+	 * byte-for-byte or because its header timestamp is older than the
+	 * recorded one (e.g. a stale cache node answered).
+	 */
+	public boolean isUnchanged() {
+	    if (mContentHash == mRecordedContentHash) {
+	        return true;
+	    }
+	    
+	    return mTimestamp > 0 && mTimestamp < mRecordedTimestamp;
+	}
+	
+	/**
+	 * Called once the last loaded message has been committed, so that the
+	 * next load can be compared against it. Conditional GET validators are
+	 * only sent for recorded content so a failed commit is retried.
+	 */
+	public void markRecorded() {
+	    mRecordedTimestamp = mTimestamp;
+	    mRecordedContentHash = mContentHash;
+	    mETag = mLoadedETag;
+	    mLastModified = mLoadedLastModified;
 	}
 	
-	private static final String HTTPS = "https";
 	private static final String GZIP = "gzip";
+	private static final String X_GZIP = "x-gzip";
+	private static final String DEFLATE = "deflate";
+	private static final String IDENTITY = "identity";
+	
+	private static final int MIN_BUFFER_SIZE = 8192;
+	private static final int MAX_BUFFER_SIZE = 65536;
+	
+	// Decoded payloads larger than this are rejected rather than buffered
+	private static final int MAX_PAYLOAD_SIZE = 128 * 1024 * 1024;
+	
+	// Size of the decoder's buffer of compressed input, not of the decoded
+	// payload, which readFully() collects in mData
+	private int mBufferSize = MIN_BUFFER_SIZE;
+	
+	// Only deflate reuses its Inflater between polls; GZIPInputStream
+	// always creates its own
+	private Inflater mInflater;
+	private boolean mInflaterNowrap;
+	
+	private static final int HTTP_OK = 200;
+	private static final int HTTP_NOT_MODIFIED = 304;
 	
 	private void log(String str) {
 	    if (mLogger != null) {
@@ -74,53 +160,44 @@ public class GtfsRealTimeFeed {
 	private int mSocketTimeoutMs = 30000;
 	private int mConnectTimeoutMs = 30000;
 	
-	public void load() throws ConnectTimeoutException, SocketTimeoutException, NoSuchAlgorithmException, KeyManagementException, ClientProtocolException, IOException, HttpException {
-		HttpClient httpClient;
-
+	private volatile HttpGet mRequest;
+	
+	/**
+	 * Aborts a load in progress on another thread, which then fails with an
+	 * IOException.
+	 */
+	public void abort() {
+	    HttpGet request = mRequest;
+	    
+	    if (request != null) {
+	        request.abort();
+	    }
+	}
+	
+	public boolean load() throws ConnectTimeoutException, SocketTimeoutException, NoSuchAlgorithmException, KeyManagementException, ClientProtocolException, IOException, HttpException {
+	    return load(null);
+	}
+	
+	/**
+	 * Synchronized so an aborted load that is still unwinding can't overlap
+	 * the next one.
+	 * 
+	 * @param trace if not null, receives request, read, decompress and parse spans
+	 * @return false if the server reported the feed unchanged since the
+	 *         previous load, in which case getReader() is not updated
+	 */
+	public synchronized boolean load(CycleTrace trace) throws ConnectTimeoutException, SocketTimeoutException, NoSuchAlgorithmException, KeyManagementException, ClientProtocolException, IOException, HttpException {
 		URI uri = mUri;
 		        
 	    log("Loading " + uri.toString() + " ...");
 		
-		HttpClientBuilder builder = HttpClientBuilder.create();
-
 		RequestConfig.Builder configBuilder = RequestConfig.custom();
 		configBuilder.setSocketTimeout(mSocketTimeoutMs);
 		configBuilder.setConnectTimeout(mConnectTimeoutMs);
 		
-	    builder.setDefaultRequestConfig(configBuilder.build());
-
-	    if (uri.getScheme().equals(HTTPS)) {
-			SSLContext sslContext = SSLContext.getInstance("SSL");
-			
-			sslContext.init(null, new TrustManager[] { new javax.net.ssl.X509TrustManager() {
-				
-				@Override
-				public X509Certificate[] getAcceptedIssuers() {
-					return null;
-				}
-				
-				@Override
-				public void checkServerTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
-				}
-				
-				@Override
-				public void checkClientTrusted(X509Certificate[] arg0, String arg1) throws CertificateException {
-				}
-			} }, new SecureRandom());
-			
-			int port = uri.getPort();
-			
-			if (port < 0) {
-				port = 443;
-			}
-
-			builder.setSslcontext(sslContext);
-		}
-
-		httpClient = builder.build();
-		
 		HttpGet httpGet = new HttpGet(uri);
-		httpGet.setHeader("Accept-Encoding", GZIP);
+		httpGet.setConfig(configBuilder.build());
+		httpGet.setHeader("Accept-Encoding", GZIP + ", " + DEFLATE);
         httpGet.setHeader("Accept", "application/x-protobuf,application/octet-stream,*/*");
 
 		String username = mUsername;
@@ -131,8 +208,52 @@ public class GtfsRealTimeFeed {
 			httpGet.setHeader("Authorization", "Basic " + Base64.encode(creds.getBytes()));
 		}
 
-		HttpResponse response = httpClient.execute(httpGet);
+		if (mETag != null) {
+		    httpGet.setHeader("If-None-Match", mETag);
+		}
+
+		if (mLastModified != null) {
+		    httpGet.setHeader("If-Modified-Since", mLastModified);
+		}
+
+		mRequest = httpGet;
+
+		long start = System.nanoTime();
+		boolean modified;
+		
+		try {
+		    CloseableHttpResponse response = FeedHttpClient.getInstance().execute(httpGet);
+		    
+		    if (trace != null) {
+		        trace.add("request", uri.toString(), start);
+		    }
+		    
+		    try {
+		        modified = read(httpGet, response, trace);
+		    }
+		    finally {
+		        EntityUtils.consumeQuietly(response.getEntity());
+		        response.close();
+		    }
+		}
+		finally {
+		    mRequest = null;
+		}
+
+		Metrics.FETCH_SECONDS.observe(Metrics.seconds(start), uri.toString());
 
+		if (modified) {
+		    log("Finished Loading " + uri.toString());
+		}
+		else {
+		    mNotModifiedCount++;
+		    log(String.format("Not modified: %s (%d total)", uri.toString(), mNotModifiedCount));
+		}
+		
+		return modified;
+	}
+	
+	private boolean read(HttpGet httpGet, HttpResponse response, CycleTrace trace) throws IOException, HttpException {
 		if (mOutputHeaders) {
 		    log("Request headers:");
     		outputHeaders(httpGet.getAllHeaders());
@@ -141,25 +262,202 @@ public class GtfsRealTimeFeed {
     	    outputHeaders(response.getAllHeaders());
 		}
 		
-		if (response.getStatusLine().getStatusCode() != 200) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		
+		if (statusCode == HTTP_NOT_MODIFIED) {
+		    return false;
+		}
+		
+		if (statusCode != HTTP_OK) {
 			throw new HttpException("Unexpected response: " + response.getStatusLine().toString(), response.getStatusLine().getStatusCode());
 		}
 
 		HttpEntity httpEntity = response.getEntity();
+		String feed = mUri.toString();
 		
-		Header contentEncoding = httpEntity.getContentEncoding();
+		CountingInputStream raw = new CountingInputStream(httpEntity.getContent());
+		long readStart = System.nanoTime();
+		InputStream is = getDecodedStream(httpEntity, raw);
 
-		InputStream is;
+		try {
+		    readFully(is);
+		}
+		finally {
+		    is.close();
+		}
+
+		long readNanos = System.nanoTime() - readStart;
+		
+		Metrics.FETCH_BYTES.observe(raw.getCount(), feed);
 		
-		if (contentEncoding == null || !contentEncoding.getValue().equalsIgnoreCase(GZIP)) {
-			is = httpEntity.getContent();
+		if (trace != null) {
+		    trace.add("read", feed, readStart, readNanos);
 		}
-		else {
-			is = new GZIPInputStream(new ByteArrayInputStream(EntityUtils.toByteArray(httpEntity)));
+		
+		if (is != raw) {
+		    // Whatever wasn't spent waiting on the network was spent inflating
+		    long decompressNanos = Math.max(0, readNanos - raw.getNanos());
+		    
+		    Metrics.DECOMPRESS_SECONDS.observe(decompressNanos / 1e9, feed);
+		    
+		    if (trace != null) {
+		        trace.add("decompress", feed, readStart, decompressNanos);
+		    }
 		}
 
-		mFeedMessage = GtfsRealtime.FeedMessage.parseFrom(is);
-		log("Finished Loading " + uri.toString());
+		CRC32 crc = new CRC32();
+		crc.update(mData, 0, mDataLength);
+		
+		mContentHash = crc.getValue();
+		
+		long parseStart = System.nanoTime();
+		mReader = new FeedMessageReader(mData, mDataLength);
+
+		FeedHeader header = mReader.getHeader();
+		mTimestamp = header.hasTimestamp() ? header.getTimestamp() : -1;
+		
+		Metrics.PARSE_SECONDS.observe(Metrics.seconds(parseStart), feed);
+		
+		if (trace != null) {
+		    trace.add("parse", feed, parseStart);
+		}
+		
+		mLoadedETag = getHeaderValue(response, "ETag");
+		mLoadedLastModified = getHeaderValue(response, "Last-Modified");
+		
+		mCadence.observe(getPublishedTime(), System.currentTimeMillis());
+		
+		return true;
+	}
+	
+	/**
+	 * Wraps the entity stream in the matching decoder so the payload is
+	 * inflated as it is read rather than buffering the compressed body.
+	 * The decoded payload itself is still buffered in full by readFully().
+	 */
+	private InputStream getDecodedStream(HttpEntity entity, InputStream is) throws IOException {
+	    long length = entity.getContentLength();
+	    
+	    if (length > 0) {
+	        mBufferSize = (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, length / 16));
+	    }
+	    
+	    Header contentEncoding = entity.getContentEncoding();
+	    String encoding = contentEncoding == null ? IDENTITY : contentEncoding.getValue().trim().toLowerCase();
+	    
+	    if (encoding.equals(GZIP) || encoding.equals(X_GZIP)) {
+	        return new GZIPInputStream(is, mBufferSize);
+	    }
+	    
+	    if (encoding.equals(DEFLATE)) {
+	        // Servers disagree on whether "deflate" means zlib-wrapped or raw,
+	        // so sniff the zlib header before choosing the inflater mode
+	        PushbackInputStream pis = new PushbackInputStream(is, 2);
+	        
+	        int b0 = pis.read();
+	        int b1 = b0 < 0 ? -1 : pis.read();
+	        
+	        if (b1 >= 0) {
+	            pis.unread(b1);
+	        }
+	        
+	        if (b0 >= 0) {
+	            pis.unread(b0);
+	        }
+	        
+	        boolean zlib = b1 >= 0 && (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+	        
+	        return new InflaterInputStream(pis, getInflater(!zlib), mBufferSize);
+	    }
+	    
+	    if (!encoding.equals(IDENTITY) && encoding.length() > 0) {
+	        log(String.format("Unsupported content encoding '%s', reading as identity", encoding));
+	    }
+	    
+	    return is;
+	}
+	
+	/**
+	 * Reads the decoded payload into the per-feed buffer, which is kept
+	 * between polls. FeedMessageReader makes several passes over the
+	 * encoded message, and it is hashed and spooled as is, so it has to be
+	 * held in full; instead the buffer is capped at MAX_PAYLOAD_SIZE, and
+	 * released once payloads shrink to under a quarter of it so a single
+	 * oversized message isn't held for the life of the feed.
+	 */
+	private void readFully(InputStream is) throws IOException {
+	    if (mData != null && mData.length > MAX_BUFFER_SIZE && mData.length / 4 > mDataLength) {
+	        mData = null;
+	    }
+	    
+	    if (mData == null) {
+	        mData = new byte[Math.max(MAX_BUFFER_SIZE, mDataLength + mDataLength / 2)];
+	    }
+	    
+	    mReader = null;
+	    mDataLength = 0;
+	    
+	    while (true) {
+	        if (mDataLength == mData.length) {
+	            if (mData.length >= MAX_PAYLOAD_SIZE) {
+	                throw new IOException(String.format("Feed is larger than %d bytes", MAX_PAYLOAD_SIZE));
+	            }
+	            
+	            mData = Arrays.copyOf(mData, (int) Math.min(MAX_PAYLOAD_SIZE, mData.length * 2L));
+	        }
+	        
+	        int read = is.read(mData, mDataLength, mData.length - mDataLength);
+	        
+	        if (read < 0) {
+	            break;
+	        }
+	        
+	        mDataLength += read;
+	    }
+	}
+	
+	private Inflater getInflater(boolean nowrap) {
+	    if (mInflater == null || mInflaterNowrap != nowrap) {
+	        if (mInflater != null) {
+	            mInflater.end();
+	        }
+	        
+	        mInflater = new Inflater(nowrap);
+	        mInflaterNowrap = nowrap;
+	    }
+	    else {
+	        mInflater.reset();
+	    }
+	    
+	    return mInflater;
+	}
+	
+	/**
+	 * Producer time of the loaded message, from its header timestamp or
+	 * failing that the Last-Modified response header.
+	 * 
+	 * @return milliseconds, or -1 if unknown
+	 */
+	public long getPublishedTime() {
+	    if (mTimestamp > 0) {
+	        return mTimestamp * 1000;
+	    }
+	    
+	    if (mLoadedLastModified != null) {
+	        Date date = DateUtils.parseDate(mLoadedLastModified);
+	        
+	        if (date != null) {
+	            return date.getTime();
+	        }
+	    }
+	    
+	    return -1;
+	}
+	
+	private String getHeaderValue(HttpResponse response, String name) {
+	    Header header = response.getFirstHeader(name);
+	    
+	    return header == null ? null : header.getValue();
 	}
 	
 	private void outputHeaders(Header[] headers) {
@@ -177,4 +475,52 @@ public class GtfsRealTimeFeed {
 	    
 	    log(str);
 	}
+	
+	/**
+	 * Counts the bytes read from the network, and the time spent waiting
+	 * for them.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+	    
+	    private long mCount = 0;
+	    private long mNanos = 0;
+	    
+	    CountingInputStream(InputStream in) {
+	        super(in);
+	    }
+	    
+	    long getCount() {
+	        return mCount;
+	    }
+	    
+	    long getNanos() {
+	        return mNanos;
+	    }
+	    
+	    @Override
+	    public int read() throws IOException {
+	        long start = System.nanoTime();
+	        int b = super.read();
+	        mNanos += System.nanoTime() - start;
+	        
+	        if (b >= 0) {
+	            mCount++;
+	        }
+	        
+	        return b;
+	    }
+	    
+	    @Override
+	    public int read(byte[] b, int off, int len) throws IOException {
+	        long start = System.nanoTime();
+	        int read = super.read(b, off, len);
+	        mNanos += System.nanoTime() - start;
+	        
+	        if (read > 0) {
+	            mCount += read;
+	        }
+	        
+	        return read;
+	    }
+	}
 }
@@ -1,5 +1,6 @@
 package com.transitfeeds.gtfsrealtimetosql;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.sql.Connection;
@@ -9,21 +10,32 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.zip.CRC32;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.postgresql.copy.CopyIn;
 import org.postgresql.copy.CopyManager;
 import org.postgresql.core.BaseConnection;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.transit.realtime.GtfsRealtime.Alert;
 import com.google.transit.realtime.GtfsRealtime.EntitySelector;
 import com.google.transit.realtime.GtfsRealtime.FeedEntity;
-import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.Position;
 import com.google.transit.realtime.GtfsRealtime.TimeRange;
 import com.google.transit.realtime.GtfsRealtime.TranslatedString;
@@ -39,94 +51,744 @@ import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatu
 public class GtfsRealTimeSqlRecorder {
 
     private Connection                     mConnection;
-    private Map<String, PreparedStatement> mStatements    = new HashMap<String, PreparedStatement>();
+    private Connection                     mTripUpdateConnection;
+    private Connection                     mVehicleConnection;
+    private Map<String, BatchInsert>       mStatements    = new HashMap<String, BatchInsert>();
 
     private static final String            COPY_SEPARATOR = ",";
     
     private int mOpenQueries = 0;
+    private Map<CopyIn, Long> mOpenCopies = new HashMap<CopyIn, Long>();
+
+    // Rows written per feed and table this cycle, reported once committed
+    private Map<List<String>, Integer> mRowsWritten = new HashMap<List<String>, Integer>();
+
+    // Feed whose message is being recorded, and every feed recorded this cycle
+    private String mFeed = "";
+    private Set<String> mCycleFeeds = new LinkedHashSet<String>();
     
     private Logger mLogger;
+    
+    private boolean mTranscode = false;
+    private boolean mBinaryCopy = false;
+    private boolean mSnapshot = false;
+    private Set<String> mStagedTables = new HashSet<String>();
+    private boolean mIncremental = false;
+    private IncrementalState mIncrementalState = new IncrementalState();
+    private EntityDiff mTripUpdateDiff = mIncrementalState.getTripUpdateDiff();
+    private EntityDiff mVehicleDiff = mIncrementalState.getVehicleDiff();
+    // Diffs started this cycle, the only ones it may commit or roll back
+    private List<EntityDiff> mCycleDiffs = new ArrayList<EntityDiff>();
+    private boolean mCycleLocked = false;
+    private int mFailures = 0;
+    private boolean mHistory = false;
+    private long mHistoryInterval = HISTORY_DAILY;
+    private long mHistoryRetention = 0;
+    private long mNextPartitionCheck = 0;
+    private CopyTranscoder mTranscoder = new CopyTranscoder();
 
     public GtfsRealTimeSqlRecorder(Logger logger, Connection connection) {
         mConnection = connection;
         mLogger = logger;
     }
 
+    /**
+     * When recording over COPY, write trip updates and vehicle positions
+     * straight from the feed bytes instead of decoding message objects.
+     */
+    public void setTranscode(boolean transcode) {
+        mTranscode = transcode;
+    }
+
+    private CycleTrace mTrace;
+
+    /**
+     * Spans for clearing tables, writing entities and ending each table's
+     * batch or copy are added to the trace until it's set to null.
+     */
+    public void setTrace(CycleTrace trace) {
+        mTrace = trace;
+    }
+
+    private void trace(String stage, String detail, long startNanos) {
+        if (mTrace != null) {
+            mTrace.add(stage, detail, startNanos);
+        }
+    }
+
+    /**
+     * Use the binary COPY format for gtfs_rt_trip_updates,
+     * gtfs_rt_trip_updates_stoptimes and gtfs_rt_vehicles.
+     */
+    public void setBinaryCopy(boolean binaryCopy) {
+        mBinaryCopy = binaryCopy;
+    }
+
+    /**
+     * Loads gtfs_rt_trip_updates and gtfs_rt_vehicles over their own
+     * connections so that every table can be copied at the same time.
+     * Stop times and alerts stay on the main connection. commit() then uses
+     * prepared transactions so that either every table is published or none
+     * is, which requires max_prepared_transactions > 0 on the server.
+     *
+     * Only takes effect when all connections are PostgreSQL connections.
+     */
+    public void setParallelConnections(Connection tripUpdateConnection, Connection vehicleConnection) {
+        mTripUpdateConnection = tripUpdateConnection;
+        mVehicleConnection = vehicleConnection;
+    }
+
+    private boolean isParallel() {
+        return mConnection instanceof BaseConnection && mTripUpdateConnection instanceof BaseConnection && mVehicleConnection instanceof BaseConnection;
+    }
+
+    private List<Connection> getConnections() {
+        List<Connection> connections = new ArrayList<Connection>();
+        connections.add(mConnection);
+
+        if (isParallel()) {
+            connections.add(mTripUpdateConnection);
+            connections.add(mVehicleConnection);
+        }
+
+        return connections;
+    }
+
+    private Connection getTableConnection(String tableName) {
+        if (isParallel()) {
+            if (tableName.equals("gtfs_rt_trip_updates")) {
+                return mTripUpdateConnection;
+            }
+            else if (tableName.equals("gtfs_rt_vehicles")) {
+                return mVehicleConnection;
+            }
+        }
+
+        return mConnection;
+    }
+
+    /**
+     * Instead of deleting rows, load each table into a fresh staging table,
+     * index it, then rename it over the live table as part of the
+     * transaction. Readers see the old snapshot until commit and the write
+     * path never pays for per-row deletes or dead tuples.
+     *
+     * Staging tables are ordinary logged tables, since they become the live
+     * tables; with wal_level=minimal PostgreSQL skips WAL for a COPY into a
+     * table created in the same transaction anyway.
+     *
+     * Only takes effect on PostgreSQL. Each swap replaces the live tables
+     * with new ones, so grants, triggers and anything else set up on them
+     * by hand are lost, and views or foreign keys that depend on them stop
+     * the drop and fail the cycle.
+     */
+    public void setSnapshot(boolean snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    private boolean isSnapshot() {
+        return mSnapshot && mConnection instanceof BaseConnection && !isHistory();
+    }
+
+    private static final String STAGING_SUFFIX = "_staging";
+
+    /**
+     * Remember a fingerprint per trip_id and vehicle_id between cycles and
+     * only delete and rewrite the trip updates and vehicles that changed.
+     * The first cycle, and any cycle after a failure, rewrites everything.
+     *
+     * Only takes effect on PostgreSQL, and not in snapshot mode. Unchanged
+     * rows keep the recorded time of the cycle that last wrote them.
+     * Recorders sharing an IncrementalState record one cycle at a time.
+     */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    /**
+     * Shares the fingerprints and update ids of incremental recording with
+     * the other recorders writing to the same database.
+     */
+    public void setIncrementalState(IncrementalState state) {
+        mIncrementalState = state;
+        mTripUpdateDiff = state.getTripUpdateDiff();
+        mVehicleDiff = state.getVehicleDiff();
+    }
+
+    private boolean isIncremental() {
+        return mIncremental && mConnection instanceof BaseConnection && !isSnapshot() && !isHistory();
+    }
+
+    /**
+     * @return the table rows should currently be written to
+     */
+    private String getTableName(String tableName) {
+        if (mStagedTables.contains(tableName)) {
+            return getStagingName(tableName);
+        }
+
+        return isHistory() ? tableName + HISTORY_SUFFIX : tableName;
+    }
+
+    public static final long HISTORY_DAILY  = 86400;
+    public static final long HISTORY_HOURLY = 3600;
+
+    private static final String HISTORY_SUFFIX = "_history";
+
+    /**
+     * Append every cycle to gtfs_rt_*_history tables instead of replacing
+     * the current snapshot. Each row is tagged with snapshot_id,
+     * snapshot_time and feed_timestamp, and the tables are range
+     * partitioned on snapshot_time so old data can be retired by dropping
+     * whole partitions.
+     *
+     * Requires PostgreSQL 10 or later; snapshot and incremental modes are
+     * ignored while this is on.
+     */
+    public void setHistory(boolean history) {
+        mHistory = history;
+    }
+
+    /**
+     * @param seconds HISTORY_DAILY or HISTORY_HOURLY
+     */
+    public void setHistoryInterval(long seconds) {
+        mHistoryInterval = seconds;
+    }
+
+    /**
+     * @param seconds partitions entirely older than this are dropped, or 0
+     *            to keep everything
+     */
+    public void setHistoryRetention(long seconds) {
+        mHistoryRetention = seconds;
+    }
+
+    private boolean isHistory() {
+        return mHistory && mConnection instanceof BaseConnection;
+    }
+
     public void startup() throws SQLException {
+        if (isSqlite()) {
+            configureSqlite();
+        }
+
+        if (mConnection instanceof BaseConnection) {
+            resolvePreparedTransactions();
+        }
+
         createTables();
+        execute(mConnection, String.format("CREATE TABLE IF NOT EXISTS %s (spool TEXT, cycle_id BIGINT, PRIMARY KEY (spool, cycle_id))", REPLAYED_TABLE));
+
+        if (isHistory()) {
+            createHistoryTables();
+        }
+
         openStatements();
     }
 
     public void shutdown() throws SQLException {
+        // A cycle still open is lost along with the connection
+        rollbackDiffs();
+        unlockCycle();
+
         closeStatements();
     }
 
+    // SQLite limits on bound parameters and on terms in a compound SELECT
+    private static final int SQLITE_MAX_VARIABLES = 999;
+    private static final int SQLITE_MAX_COMPOUND_SELECT = 500;
+
+    // Rows queued in a JDBC batch before it is sent
+    private static final int BATCH_FLUSH_ROWS = 4096;
+
+    // In pages, 16MB with SQLite's default 1KB pages
+    private static final int SQLITE_CACHE_PAGES = 16384;
+
+    private boolean isSqlite() {
+        return mConnection.getClass().getName().startsWith("org.sqlite.");
+    }
+
+    /**
+     * WAL lets readers carry on while a cycle is written, and with it
+     * synchronous=NORMAL only syncs at checkpoints rather than every commit.
+     */
+    private void configureSqlite() throws SQLException {
+        execute(mConnection, "PRAGMA journal_mode=WAL");
+        execute(mConnection, "PRAGMA synchronous=NORMAL");
+        execute(mConnection, "PRAGMA cache_size=" + SQLITE_CACHE_PAGES);
+        execute(mConnection, "PRAGMA temp_store=MEMORY");
+    }
+
     private boolean mAutoCommit;
 
     public void begin() throws SQLException {
+        // Held until commit() or rollback(), see IncrementalState
+        if (isIncremental() && !mCycleLocked) {
+            mIncrementalState.lockCycle();
+            mCycleLocked = true;
+        }
+
+        if (isHistory()) {
+            maintainPartitions();
+        }
+
         mAutoCommit = mConnection.getAutoCommit();
-        mConnection.setAutoCommit(false);
 
-        resetUpdateId();
+        for (Connection connection : getConnections()) {
+            connection.setAutoCommit(false);
+        }
+
+        mFailures = 0;
+        mRowsWritten.clear();
+        mCycleFeeds.clear();
+        rollbackDiffs();
+        mAlertId = 0;
+
+        // Incremental cycles keep the rows, and the update ids, of unchanged trip updates
+        if (!isIncremental()) {
+            resetUpdateId();
+        }
     }
 
     public void commit() throws SQLException {
-        mConnection.commit();
-        mConnection.setAutoCommit(mAutoCommit);
+        try {
+            commitCycle();
+        }
+        finally {
+            // Diffs left over by a failure after the commit can't be trusted
+            // either, and mustn't outlive the lock
+            for (EntityDiff diff : mCycleDiffs) {
+                diff.invalidate();
+            }
+
+            mCycleDiffs.clear();
+            unlockCycle();
+        }
+    }
+
+    private void commitCycle() throws SQLException {
+        long start = System.nanoTime();
+
+        try {
+            if (isParallel()) {
+                commitPrepared();
+            }
+            else {
+                mConnection.commit();
+            }
+        }
+        catch (SQLException e) {
+            // The commit may still have happened, so the fingerprints can't be trusted
+            for (EntityDiff diff : mCycleDiffs) {
+                diff.invalidate();
+            }
+
+            mCycleDiffs.clear();
+            throw e;
+        }
+
+        // Each feed in the transaction waited for the whole commit
+        double seconds = Metrics.seconds(start);
+
+        for (String feed : mCycleFeeds) {
+            Metrics.COMMIT_SECONDS.observe(seconds, feed);
+        }
+
+        for (Map.Entry<List<String>, Integer> entry : mRowsWritten.entrySet()) {
+            Metrics.ROWS_WRITTEN.inc(entry.getValue(), entry.getKey().get(0), entry.getKey().get(1));
+        }
+
+        mRowsWritten.clear();
+        mCycleFeeds.clear();
+
+        for (Connection connection : getConnections()) {
+            connection.setAutoCommit(mAutoCommit);
+        }
+
+        // Failed writes may not have reached the table, so the fingerprints can't be trusted
+        for (EntityDiff diff : mCycleDiffs) {
+            if (mFailures > 0) {
+                diff.invalidate();
+            }
+            else {
+                diff.commit();
+            }
+        }
+
+        mCycleDiffs.clear();
+    }
+
+    /**
+     * Only touches the diffs this cycle started, as a recorder sharing the
+     * IncrementalState may be part way through a cycle of its own.
+     */
+    private void rollbackDiffs() {
+        for (EntityDiff diff : mCycleDiffs) {
+            diff.rollback();
+        }
+
+        mCycleDiffs.clear();
+    }
+
+    private void unlockCycle() {
+        if (mCycleLocked) {
+            mCycleLocked = false;
+            mIncrementalState.unlockCycle();
+        }
+    }
+
+    private static final String PREPARED_PREFIX = "gtfsrt-";
+
+    // Prepared transaction ids are <prefix><uuid>-<index>-<count>
+    private static final Pattern PREPARED_GID = Pattern.compile("^(" + PREPARED_PREFIX + ".+)-(\\d+)-(\\d+)$");
+
+    // Younger prepared transactions may still be committed by their recorder
+    private static final int ORPHAN_PREPARED_SECONDS = 60;
+
+    /**
+     * Two-phase commit across the table connections. If any connection
+     * fails to prepare, everything is rolled back. Once all are prepared,
+     * every one is committed even if some fail, so as little as possible
+     * is left for resolvePreparedTransactions().
+     */
+    private void commitPrepared() throws SQLException {
+        List<Connection> connections = getConnections();
+        List<String> prepared = new ArrayList<String>();
+
+        String gid = PREPARED_PREFIX + UUID.randomUUID().toString();
+
+        try {
+            for (int i = 0; i < connections.size(); i++) {
+                String id = String.format("%s-%d-%d", gid, i, connections.size());
+                execute(connections.get(i), String.format("PREPARE TRANSACTION '%s'", id));
+                prepared.add(id);
+            }
+        }
+        catch (SQLException e) {
+            for (int i = 0; i < connections.size(); i++) {
+                Connection connection = connections.get(i);
+
+                try {
+                    if (i < prepared.size()) {
+                        connection.setAutoCommit(true);
+                        execute(connection, String.format("ROLLBACK PREPARED '%s'", prepared.get(i)));
+                    }
+                    else {
+                        connection.rollback();
+                    }
+                }
+                catch (SQLException re) {
+                    mLogger.warning(getString(re));
+                }
+            }
+
+            throw e;
+        }
+
+        SQLException failure = null;
+
+        for (int i = 0; i < connections.size(); i++) {
+            try {
+                commitPrepared(connections, i, prepared.get(i));
+            }
+            catch (SQLException e) {
+                mLogger.severe(String.format("Unable to commit prepared transaction %s, it will be committed on the next startup: %s", prepared.get(i), e.toString()));
+
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Any session can finish a prepared transaction, so if the connection
+     * that prepared it has failed the others are tried.
+     */
+    private void commitPrepared(List<Connection> connections, int index, String id) throws SQLException {
+        SQLException failure = null;
+
+        for (int i = 0; i < connections.size(); i++) {
+            Connection connection = connections.get((index + i) % connections.size());
+
+            try {
+                // COMMIT PREPARED cannot run inside a transaction block
+                connection.setAutoCommit(true);
+                execute(connection, String.format("COMMIT PREPARED '%s'", id));
+                return;
+            }
+            catch (SQLException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        throw failure;
+    }
+
+    /**
+     * Finishes prepared transactions left behind by a recorder that crashed
+     * or lost its connections part way through commitPrepared().
+     *
+     * Connections are prepared in order, so if the last one of a cycle is
+     * still prepared the whole cycle was, and the commit had begun: the
+     * rest is committed. Otherwise the cycle never finished preparing and
+     * is rolled back.
+     */
+    private void resolvePreparedTransactions() throws SQLException {
+        List<String> gids = new ArrayList<String>();
+        Statement stmt = mConnection.createStatement();
+
+        try {
+            ResultSet rs = stmt.executeQuery(String.format("SELECT gid FROM pg_prepared_xacts WHERE gid LIKE '%s%%' AND database = current_database() AND prepared < now() - interval '%d seconds'", PREPARED_PREFIX, ORPHAN_PREPARED_SECONDS));
+
+            while (rs.next()) {
+                gids.add(rs.getString(1));
+            }
+        }
+        finally {
+            stmt.close();
+        }
+
+        Set<String> committing = new HashSet<String>();
+
+        for (String gid : gids) {
+            Matcher m = PREPARED_GID.matcher(gid);
+
+            if (m.matches() && Integer.parseInt(m.group(2)) == Integer.parseInt(m.group(3)) - 1) {
+                committing.add(m.group(1));
+            }
+        }
+
+        for (String gid : gids) {
+            Matcher m = PREPARED_GID.matcher(gid);
+            boolean commit = m.matches() && committing.contains(m.group(1));
+
+            try {
+                execute(mConnection, String.format("%s PREPARED '%s'", commit ? "COMMIT" : "ROLLBACK", gid));
+                mLogger.warning(String.format("%s orphaned prepared transaction %s", commit ? "Committed" : "Rolled back", gid));
+            }
+            catch (SQLException e) {
+                mLogger.warning(String.format("Unable to resolve prepared transaction %s: %s", gid, e.toString()));
+            }
+        }
+    }
+
+    private void execute(Connection connection, String query) throws SQLException {
+        Statement stmt = connection.createStatement();
+
+        try {
+            stmt.execute(query);
+        }
+        finally {
+            stmt.close();
+        }
     }
     
     public int getNumOpenQueries() {
         return mOpenQueries;
     }
 
-    public void record(FeedMessage feedMessage) throws SQLException {
-        
-        int numAlerts = 0;
-        int numTripUpdates = 0;
-        int numVehiclePositions = 0;
-        
-        mOpenQueries = 0;
-
-        for (FeedEntity entity : feedMessage.getEntityList()) {
-            if (entity.hasAlert()) {
-                numAlerts++;
+    /**
+     * Abandons the current cycle so the connections can be reused: cancels
+     * any copy left in progress, rolls back, and re-prepares the statements
+     * since their batches and staging tables are gone.
+     */
+    public void rollback() throws SQLException {
+        try {
+            for (CopyIn copyIn : mOpenCopies.keySet()) {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
             }
 
-            if (entity.hasTripUpdate()) {
-                numTripUpdates++;
-            }
+            mOpenCopies.clear();
+            mOpenQueries = 0;
+            mRowsWritten.clear();
+            mCycleFeeds.clear();
 
-            if (entity.hasVehicle()) {
-                numVehiclePositions++;
+            for (Connection connection : getConnections()) {
+                connection.rollback();
+                connection.setAutoCommit(mAutoCommit);
             }
         }
+        finally {
+            rollbackDiffs();
+            unlockCycle();
+        }
+
+        mStagedTables.clear();
+
+        closeStatements();
+        openStatements();
+    }
+
+    /**
+     * Copies the rows a buffered copier has collected, if any.
+     */
+    private void copyBuffered(CopyManager cm, DataCopier copier, String copy, String tableName) throws SQLException, IOException {
+        if (copier.size() == 0) {
+            return;
+        }
+
+        CopyIn copyIn = openCopy(cm, getCopyQuery(copy, tableName));
+
+        copier.write(copyIn);
+        endCopy(copyIn, tableName, copier.size());
+    }
+
+    private CopyIn openCopy(CopyManager cm, String query) throws SQLException {
+        CopyIn copyIn = cm.copyIn(query);
+
+        mOpenQueries++;
+        mOpenCopies.put(copyIn, System.nanoTime());
+
+        return copyIn;
+    }
+
+    private void endCopy(CopyIn copyIn, String tableName, int rows) throws SQLException {
+        copyIn.endCopy();
+        mOpenQueries--;
+
+        Long start = mOpenCopies.remove(copyIn);
+
+        if (start != null) {
+            Metrics.COPY_SECONDS.observe(Metrics.seconds(start), mFeed, tableName);
+            trace("copy", tableName, start);
+        }
+
+        countRows(tableName, rows);
+    }
+
+    private void executeBatch(String key, String tableName) throws SQLException {
+        long start = System.nanoTime();
+
+        countRows(tableName, mStatements.get(key).executeBatch());
+        trace("batch", tableName, start);
+    }
+
+    private void countRows(String tableName, int rows) {
+        List<String> key = Arrays.asList(mFeed, tableName);
+        Integer count = mRowsWritten.get(key);
+        mRowsWritten.put(key, count == null ? rows : count + rows);
+    }
+
+    public void record(FeedMessageReader reader) throws SQLException, IOException {
+        record(reader, null);
+    }
+
+    /**
+     * @param feed labels the message's metrics, e.g. the feed URL, or null
+     */
+    public void record(FeedMessageReader reader, String feed) throws SQLException, IOException {
+        mFeed = feed == null ? "" : feed;
+        mCycleFeeds.add(mFeed);
+        mRecordedTime = reader.getFetchedTime();
+        
+        int numAlerts = reader.getNumAlerts();
+        int numTripUpdates = reader.getNumTripUpdates();
+        int numVehiclePositions = reader.getNumVehiclePositions();
         
+        mOpenQueries = 0;
+        mOpenCopies.clear();
+
         boolean hasAlerts = numAlerts > 0;
         boolean hasTripUpdates = numTripUpdates > 0;
         boolean hasVehiclePositions = numVehiclePositions > 0;
 
         mLogger.info(String.format("Entities: alerts=%d, updates=%d, positions=%d", numAlerts, numTripUpdates, numVehiclePositions));
         
+        boolean incremental = isIncremental();
+        boolean diffTripUpdates = incremental && hasTripUpdates && mTripUpdateDiff.isValid() && mIncrementalState.getLastUpdateId() < MAX_INCREMENTAL_UPDATE_ID;
+        boolean diffVehiclePositions = incremental && hasVehiclePositions && mVehicleDiff.isValid();
+
         mLogger.info("Clearing tables...");
+        long clearStart = System.nanoTime();
+        mStagedTables.clear();
 
         if (hasAlerts) {
             clearAlertsData();
         }
 
-        if (hasTripUpdates) {
+        if (hasTripUpdates && !diffTripUpdates) {
             clearTripUpdatesData();
+
+            if (incremental) {
+                resetUpdateId();
+            }
         }
 
-        if (hasVehiclePositions) {
+        if (hasVehiclePositions && !diffVehiclePositions) {
             clearVehiclePositionsData();
         }
 
+        trace("clear", null, clearStart);
         mLogger.info("Finished clearing tables");
 
+        if (!mStagedTables.isEmpty()) {
+            closeStatements();
+            openStatements();
+        }
+
         if (!hasAlerts && !hasTripUpdates && !hasVehiclePositions) {
             mLogger.info("Nothing to record");
             return;
         }
+
+        if (isHistory()) {
+            startHistorySnapshot(reader);
+        }
+
+        List<String> tuKeys = null;
+        List<String> vpKeys = null;
+
+        if (incremental) {
+            long diffStart = System.nanoTime();
+
+            if (hasTripUpdates) {
+                tuKeys = new ArrayList<String>();
+                mTripUpdateDiff.start(!diffTripUpdates);
+                startedDiff(mTripUpdateDiff);
+            }
+
+            if (hasVehiclePositions) {
+                vpKeys = new ArrayList<String>();
+                mVehicleDiff.start(!diffVehiclePositions);
+                startedDiff(mVehicleDiff);
+            }
+
+            fingerprintEntities(reader, tuKeys, vpKeys);
+
+            try {
+                if (diffTripUpdates) {
+                    List<String> stale = mTripUpdateDiff.getStaleKeys();
+                    mLogger.info(String.format("Trip updates: %d changed, %d stale", mTripUpdateDiff.getChangedCount(), stale.size()));
+
+                    deleteStaleTripUpdates(stale);
+                }
+
+                if (diffVehiclePositions) {
+                    List<String> stale = mVehicleDiff.getStaleKeys();
+                    mLogger.info(String.format("Vehicles: %d changed, %d stale", mVehicleDiff.getChangedCount(), stale.size()));
+
+                    deleteStaleRows(getTableConnection("gtfs_rt_vehicles"), stale,
+                            "DELETE FROM gtfs_rt_vehicles v USING %s k WHERE v.vehicle_id = k.key",
+                            "DELETE FROM gtfs_rt_vehicles WHERE vehicle_id IS NULL");
+                }
+            }
+            catch (SQLException e) {
+                mFailures++;
+                throw e;
+            }
+
+            trace("diff", null, diffStart);
+        }
         
         boolean useCopy = mConnection instanceof BaseConnection;
 
@@ -135,6 +797,9 @@ public class GtfsRealTimeSqlRecorder {
         DataCopier tuCopier = null;
         DataCopier stCopier = null;
         DataCopier vpCopier = null;
+        DataCopier alCopier = null;
+        DataCopier atCopier = null;
+        DataCopier aeCopier = null;
         
         CopyIn tuCopyIn = null;
         CopyIn stCopyIn = null;
@@ -142,143 +807,253 @@ public class GtfsRealTimeSqlRecorder {
 
         if (useCopy) {
             cm = new CopyManager((BaseConnection) mConnection);
-            tuCopier = new DataCopier();
-            stCopier = new DataCopier();
-            vpCopier = new DataCopier();
+            tuCopier = newCopier(null);
+            stCopier = newCopier(null);
+            vpCopier = newCopier(null);
+
+            // Alerts are always buffered, and copied once the live copies
+            // on this connection have ended
+            alCopier = newCopier(null);
+            atCopier = newCopier(null);
+            aeCopier = newCopier(null);
             
-            if (hasTripUpdates) {
-                stCopyIn = cm.copyIn(COPY_TRIP_UPDATES_STOP_TIMES);
-                mOpenQueries++;
+            if (isParallel()) {
+                // Every table has its own connection, so all copies can be live at once
+                if (hasTripUpdates) {
+                    stCopyIn = openCopy(cm, getCopyQuery(COPY_TRIP_UPDATES_STOP_TIMES, "gtfs_rt_trip_updates_stoptimes"));
+                    stCopier = newCopier(stCopyIn);
+
+                    tuCopyIn = openCopy(new CopyManager((BaseConnection) mTripUpdateConnection), getCopyQuery(COPY_TRIP_UPDATES, "gtfs_rt_trip_updates"));
+                    tuCopier = newCopier(tuCopyIn);
+                }
                 
-                stCopier = new DataCopier(stCopyIn, COPY_SEPARATOR);
+                if (hasVehiclePositions) {
+                    vpCopyIn = openCopy(new CopyManager((BaseConnection) mVehicleConnection), getCopyQuery(COPY_VEHICLE_POSITIONS, "gtfs_rt_vehicles"));
+                    vpCopier = newCopier(vpCopyIn);
+                }
+            }
+            else if (hasTripUpdates) {
+                stCopyIn = openCopy(cm, getCopyQuery(COPY_TRIP_UPDATES_STOP_TIMES, "gtfs_rt_trip_updates_stoptimes"));
+                
+                stCopier = newCopier(stCopyIn);
             }
             else if (hasVehiclePositions) {
-                vpCopyIn = cm.copyIn(COPY_VEHICLE_POSITIONS);
-                mOpenQueries++;
+                vpCopyIn = openCopy(cm, getCopyQuery(COPY_VEHICLE_POSITIONS, "gtfs_rt_vehicles"));
                 
-                vpCopier = new DataCopier(vpCopyIn, COPY_SEPARATOR);
+                vpCopier = newCopier(vpCopyIn);
             }
         }
 
-        for (FeedEntity entity : feedMessage.getEntityList()) {
-            if (entity.hasAlert()) {
-                try {
-                    recordAlert(entity.getAlert());
-                } catch (SQLException e) {
-                    mLogger.warning(getString(e));
+        boolean completed = false;
+
+        try {
+            boolean transcode = useCopy && mTranscode;
+            int index = 0;
+            long writeStart = System.nanoTime();
+
+            reader.rewind();
+        
+            while (reader.next()) {
+                FeedEntity entity = null;
+                int entityIndex = index++;
+
+                boolean writeTripUpdate = reader.hasTripUpdate() && (tuKeys == null || mTripUpdateDiff.isChanged(tuKeys.get(entityIndex)));
+                boolean writeVehicle = reader.hasVehicle() && (vpKeys == null || mVehicleDiff.isChanged(vpKeys.get(entityIndex)));
+
+                if (reader.hasAlert() || (!transcode && (writeTripUpdate || writeVehicle))) {
+                    try {
+                        entity = reader.getEntity();
+                    } catch (InvalidProtocolBufferException e) {
+                        mLogger.warning(getString(e));
+                        continue;
+                    }
+                }
+            
+                if (reader.hasAlert()) {
+                    try {
+                        recordAlert(entity.getAlert(), alCopier, atCopier, aeCopier);
+                    } catch (Exception e) {
+                        rollbackRows(alCopier, atCopier, aeCopier);
+                        mLogger.warning(getString(e));
+
+                        if (e instanceof SQLException) {
+                            mFailures++;
+                        }
+                    }
                 }
-            }
 
-            if (entity.hasTripUpdate()) {
-                try {
-                    recordTripUpdate(entity.getTripUpdate(), tuCopier, stCopier);
-                } catch (Exception e) {
-                    mLogger.warning(getString(e));
+                if (writeTripUpdate) {
+                    try {
+                        if (transcode) {
+                            transcodeTripUpdate(reader, tuCopier, stCopier);
+                        }
+                        else {
+                            recordTripUpdate(entity.getTripUpdate(), tuCopier, stCopier);
+                        }
+                    } catch (Exception e) {
+                        rollbackRows(tuCopier, stCopier);
+                        mLogger.warning(getString(e));
+
+                        if (e instanceof SQLException) {
+                            mFailures++;
+                        }
+                    }
                 }
-            }
 
-            if (entity.hasVehicle()) {
-                try {
-                    recordVehicle(entity.getVehicle(), vpCopier);
-                } catch (Exception e) {
-                    mLogger.warning(getString(e));
+                if (writeVehicle) {
+                    try {
+                        if (transcode) {
+                            transcodeVehicle(reader, vpCopier);
+                        }
+                        else {
+                            recordVehicle(entity.getVehicle(), vpCopier);
+                        }
+                    } catch (Exception e) {
+                        rollbackRows(vpCopier);
+                        mLogger.warning(getString(e));
+
+                        if (e instanceof SQLException) {
+                            mFailures++;
+                        }
+                    }
                 }
             }
-        }
 
-        if (hasAlerts) {
-            mLogger.info("Committing alerts... ");
-            
-            try {
-                mStatements.get(STALERT).executeBatch();
-                mStatements.get(STALERT_ENTITIES).executeBatch();
-                mStatements.get(STALERT_TIMERANGES).executeBatch();
-                mLogger.info("done");
-            }
-            catch (Exception e) {
-                mLogger.warning(getString(e));
-            }
-        }
+            trace("write", null, writeStart);
 
-        if (hasTripUpdates) {
-            mLogger.info("Committing trip updates... ");
+            if (hasTripUpdates) {
+                mLogger.info("Committing trip updates... ");
 
-            try {
-                if (stCopier == null) {
-                    mStatements.get(STTRIPUPDATE_STOPTIMEUPDATES).executeBatch();
-                }
-                else if (stCopyIn == null && stCopier.size() > 0) {
-                    stCopyIn = cm.copyIn(COPY_TRIP_UPDATES_STOP_TIMES);
-                    mOpenQueries++;
+                try {
+                    if (stCopier == null) {
+                        executeBatch(STTRIPUPDATE_STOPTIMEUPDATES, "gtfs_rt_trip_updates_stoptimes");
+                    }
+                    else if (stCopyIn == null && stCopier.size() > 0) {
+                        stCopyIn = openCopy(cm, getCopyQuery(COPY_TRIP_UPDATES_STOP_TIMES, "gtfs_rt_trip_updates_stoptimes"));
                     
-                    stCopier.write(stCopyIn, COPY_SEPARATOR);
+                        stCopier.write(stCopyIn);
+                    }
+                }
+                catch (Exception e) {
+                    mLogger.warning(getString(e));
+                    mFailures++;
                 }
-            }
-            catch (SQLException e) {
-                e.printStackTrace();
-            }
             
-            if (stCopyIn != null) {
+                if (stCopyIn != null) {
+                    try {
+                        stCopier.flush();
+                        endCopy(stCopyIn, "gtfs_rt_trip_updates_stoptimes", stCopier.size());
+                    }
+                    catch (Exception e) {
+                        mLogger.warning(getString(e));
+                        mFailures++;
+                    }
+                }
+
                 try {
-                    stCopyIn.endCopy();
-                    mOpenQueries--;
+                    if (tuCopier == null) {
+                        executeBatch(STTRIPUPDATE, "gtfs_rt_trip_updates");
+                    }
+                    else if (tuCopyIn == null && tuCopier.size() > 0) {
+                        tuCopyIn = openCopy(cm, getCopyQuery(COPY_TRIP_UPDATES, "gtfs_rt_trip_updates"));
+                    
+                        tuCopier.write(tuCopyIn);
+                    }
                 }
                 catch (Exception e) {
                     mLogger.warning(getString(e));
+                    mFailures++;
                 }
+            
+                if (tuCopyIn != null) {
+                    try {
+                        tuCopier.flush();
+                        endCopy(tuCopyIn, "gtfs_rt_trip_updates", tuCopier.size());
+                    }
+                    catch (Exception e) {
+                        mLogger.warning(getString(e));
+                        mFailures++;
+                    }
+                }
+
+                mLogger.info("done");
             }
 
-            try {
-                if (tuCopier == null) {
-                    mStatements.get(STTRIPUPDATE).executeBatch();
+            if (hasVehiclePositions) {
+                mLogger.info("Committing vehicle positions... ");
+
+                try {
+                    if (vpCopier == null) {
+                        executeBatch(STVEHICLE, "gtfs_rt_vehicles");
+                    }
+                    else if (vpCopyIn == null && vpCopier.size() > 0) {
+                        vpCopyIn = openCopy(cm, getCopyQuery(COPY_VEHICLE_POSITIONS, "gtfs_rt_vehicles"));
+                        vpCopier.write(vpCopyIn);
+                    }
                 }
-                else if (tuCopyIn == null && tuCopier.size() > 0) {
-                    tuCopyIn = cm.copyIn(COPY_TRIP_UPDATES);
-                    mOpenQueries++;
-                    
-                    tuCopier.write(tuCopyIn, COPY_SEPARATOR);
+                catch (Exception e) {
+                    mLogger.warning(getString(e));
+                    mFailures++;
                 }
+            
+                if (vpCopyIn != null) {
+                    vpCopier.flush();
+                    endCopy(vpCopyIn, "gtfs_rt_vehicles", vpCopier.size());
+                }
+
+                mLogger.info("done");
             }
-            catch (SQLException e) {
-                e.printStackTrace();
-            }
+
+            if (hasAlerts) {
+                mLogger.info("Committing alerts... ");
             
-            if (tuCopyIn != null) {
                 try {
-                    tuCopyIn.endCopy();
-                    mOpenQueries--;
+                    if (alCopier == null) {
+                        executeBatch(STALERT, "gtfs_rt_alerts");
+                        executeBatch(STALERT_ENTITIES, "gtfs_rt_alerts_entities");
+                        executeBatch(STALERT_TIMERANGES, "gtfs_rt_alerts_timeranges");
+                    }
+                    else {
+                        copyBuffered(cm, alCopier, COPY_ALERTS, "gtfs_rt_alerts");
+                        copyBuffered(cm, aeCopier, COPY_ALERTS_ENTITIES, "gtfs_rt_alerts_entities");
+                        copyBuffered(cm, atCopier, COPY_ALERTS_TIMERANGES, "gtfs_rt_alerts_timeranges");
+                    }
+
+                    mLogger.info("done");
                 }
                 catch (Exception e) {
                     mLogger.warning(getString(e));
+                    mFailures++;
                 }
             }
 
-            mLogger.info("done");
-        }
-
-        if (hasVehiclePositions) {
-            System.err.print("Committing vehicle positions... ");
+            if (!mStagedTables.isEmpty() && mOpenQueries == 0) {
+                publishStagedTables();
+            }
 
-            try {
-                if (vpCopier == null) {
-                    mStatements.get(STVEHICLE).executeBatch();
-                }
-                else if (vpCopyIn == null && vpCopier.size() > 0) {
-                    vpCopyIn = cm.copyIn(COPY_VEHICLE_POSITIONS);
-                    mOpenQueries++;
-                    vpCopier.write(vpCopyIn, COPY_SEPARATOR);
-                }
+            if (hasTripUpdates && incremental) {
+                mTripUpdateDiff.finish();
             }
-            catch (Exception e) {
-                mLogger.warning(getString(e));
+
+            if (hasVehiclePositions && incremental) {
+                mVehicleDiff.finish();
             }
-            
-            if (vpCopyIn != null) {
-                vpCopyIn.endCopy();
-                mOpenQueries--;
+
+            completed = true;
+        }
+        finally {
+            if (!completed) {
+                mFailures++;
             }
 
-            mLogger.info("done");
+            if (useCopy) {
+                tuCopier.close();
+                stCopier.close();
+                vpCopier.close();
+                alCopier.close();
+                atCopier.close();
+                aeCopier.close();
+            }
         }
     }
 
@@ -304,16 +1079,265 @@ public class GtfsRealTimeSqlRecorder {
     }
 
     private void clearData(int from, int to) throws SQLException {
+        // History tables are append only
+        if (isHistory()) {
+            return;
+        }
+
         for (int i = from * 3; i <= to * 3; i += 3) {
+            if (isSnapshot()) {
+                createStagingTable(i);
+                continue;
+            }
+
             String query = "DELETE FROM " + TABLES[i];
             mLogger.info(query);
 
-            Statement stmt = mConnection.createStatement();
+            Statement stmt = getTableConnection(TABLES[i]).createStatement();
             stmt.execute(query);
             stmt.close();
         }
     }
 
+    private void createStagingTable(int i) throws SQLException {
+        String tableName = TABLES[i];
+        String stagingName = getStagingName(tableName);
+
+        Connection connection = getTableConnection(tableName);
+
+        mLogger.info("Staging " + stagingName);
+
+        execute(connection, "DROP TABLE IF EXISTS " + stagingName);
+        execute(connection, String.format("CREATE TABLE %s (%s)", stagingName, TABLES[i + 1]));
+
+        mStagedTables.add(tableName);
+    }
+
+    /**
+     * Staging tables are named after the backend that writes them, so the
+     * pooled recorders of any number of processes can stage the same table
+     * at once without their CREATE and RENAME colliding.
+     */
+    private String getStagingName(String tableName) {
+        int pid = ((BaseConnection) getTableConnection(tableName)).getBackendPID();
+
+        return String.format("%s%s_%d", tableName, STAGING_SUFFIX, pid);
+    }
+
+    /**
+     * Indexes each staging table and renames it over the live table. Runs
+     * inside the recording transaction, so the swap is published by
+     * commit().
+     */
+    private void publishStagedTables() throws SQLException {
+        for (int i = 0; i < TABLES.length; i += 3) {
+            String tableName = TABLES[i];
+
+            if (!mStagedTables.contains(tableName)) {
+                continue;
+            }
+
+            String stagingName = getStagingName(tableName);
+            Connection connection = getTableConnection(tableName);
+
+            mLogger.info(String.format("Publishing %s", tableName));
+
+            createIndexes(connection, stagingName, TABLES[i + 2]);
+
+            execute(connection, "DROP TABLE IF EXISTS " + tableName);
+            execute(connection, String.format("ALTER TABLE %s RENAME TO %s", stagingName, tableName));
+
+            for (String column : TABLES[i + 2].split(",")) {
+                if (column.length() > 0) {
+                    execute(connection, String.format("ALTER INDEX %s_%s RENAME TO %s_%s", stagingName, column, tableName, column));
+                }
+            }
+        }
+
+        mStagedTables.clear();
+
+        closeStatements();
+        openStatements();
+    }
+
+    private void createIndexes(Connection connection, String tableName, String indexColumns) throws SQLException {
+        String[] columns = indexColumns.split(",");
+
+        Statement stmt = connection.createStatement();
+
+        for (int j = 0; j < columns.length; j++) {
+            String column = columns[j];
+
+            if (column.length() == 0) {
+                continue;
+            }
+
+            stmt.execute(String.format("CREATE INDEX %s_%s ON %s (%s)", tableName, column, tableName, column));
+        }
+
+        stmt.close();
+    }
+
+    private static final String HISTORY_COLUMNS = "snapshot_id BIGINT DEFAULT current_setting('gtfs_rt.snapshot_id')::BIGINT, "
+            + "snapshot_time BIGINT DEFAULT current_setting('gtfs_rt.snapshot_time')::BIGINT, "
+            + "feed_timestamp BIGINT DEFAULT current_setting('gtfs_rt.feed_timestamp')::BIGINT";
+
+    /**
+     * The history columns default to settings made by startHistorySnapshot(),
+     * so the INSERT and COPY column lists don't need to change.
+     */
+    private void createHistoryTables() throws SQLException {
+        execute(mConnection, "CREATE SEQUENCE IF NOT EXISTS gtfs_rt_snapshot_id");
+
+        for (int i = 0; i < TABLES.length; i += 3) {
+            String tableName = TABLES[i] + HISTORY_SUFFIX;
+
+            execute(mConnection, String.format("CREATE TABLE IF NOT EXISTS %s (%s, %s) PARTITION BY RANGE (snapshot_time)", tableName, HISTORY_COLUMNS, TABLES[i + 1]));
+        }
+    }
+
+    private void startHistorySnapshot(FeedMessageReader reader) throws SQLException {
+        long snapshotId;
+
+        Statement stmt = mConnection.createStatement();
+
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT nextval('gtfs_rt_snapshot_id')");
+            rs.next();
+            snapshotId = rs.getLong(1);
+        }
+        finally {
+            stmt.close();
+        }
+
+        long now = mRecordedTime / 1000;
+        long feedTimestamp = reader.getHeader().hasTimestamp() ? reader.getHeader().getTimestamp() : now;
+
+        // A replayed snapshot may fall in an interval whose partitions were never created
+        if (now < mNextPartitionCheck - mHistoryInterval) {
+            for (int i = 0; i < TABLES.length; i += 3) {
+                createPartition(TABLES[i] + HISTORY_SUFFIX, TABLES[i + 2], now - now % mHistoryInterval);
+            }
+        }
+
+        mLogger.info(String.format("History snapshot %d, feed timestamp %d", snapshotId, feedTimestamp));
+
+        // Local to the recording transaction, on every connection that writes rows
+        for (Connection connection : getConnections()) {
+            PreparedStatement ps = connection.prepareStatement("SELECT set_config('gtfs_rt.snapshot_id', ?, true), set_config('gtfs_rt.snapshot_time', ?, true), set_config('gtfs_rt.feed_timestamp', ?, true)");
+
+            try {
+                ps.setString(1, String.valueOf(snapshotId));
+                ps.setString(2, String.valueOf(now));
+                ps.setString(3, String.valueOf(feedTimestamp));
+                ps.executeQuery().close();
+            }
+            finally {
+                ps.close();
+            }
+        }
+    }
+
+    /**
+     * Creates the partitions for the current and next interval, and drops
+     * those past the retention period. Runs at most once per interval,
+     * outside the recording transaction so that every connection sees the
+     * new partitions.
+     */
+    private void maintainPartitions() throws SQLException {
+        long now = new Date().getTime() / 1000;
+
+        if (now < mNextPartitionCheck) {
+            return;
+        }
+
+        long start = now - now % mHistoryInterval;
+
+        try {
+            for (int i = 0; i < TABLES.length; i += 3) {
+                String tableName = TABLES[i] + HISTORY_SUFFIX;
+
+                createPartition(tableName, TABLES[i + 2], start);
+                createPartition(tableName, TABLES[i + 2], start + mHistoryInterval);
+
+                if (mHistoryRetention > 0) {
+                    dropPartitions(tableName, now - mHistoryRetention);
+                }
+            }
+
+            if (!mConnection.getAutoCommit()) {
+                mConnection.commit();
+            }
+        }
+        catch (SQLException e) {
+            // Another recorder may be creating the same partitions, try again next cycle
+            mLogger.warning(getString(e));
+
+            if (!mConnection.getAutoCommit()) {
+                mConnection.rollback();
+            }
+
+            return;
+        }
+
+        mNextPartitionCheck = start + mHistoryInterval;
+    }
+
+    private SimpleDateFormat getPartitionFormat(boolean hourly) {
+        SimpleDateFormat format = new SimpleDateFormat(hourly ? "yyyyMMddHH" : "yyyyMMdd");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        return format;
+    }
+
+    private void createPartition(String tableName, String indexColumns, long start) throws SQLException {
+        String partitionName = tableName + "_" + getPartitionFormat(mHistoryInterval % HISTORY_DAILY != 0).format(new Date(start * 1000));
+
+        execute(mConnection, String.format("CREATE TABLE IF NOT EXISTS %s PARTITION OF %s FOR VALUES FROM (%d) TO (%d)", partitionName, tableName, start, start + mHistoryInterval));
+
+        for (String column : ("snapshot_id," + indexColumns).split(",")) {
+            if (column.length() > 0) {
+                execute(mConnection, String.format("CREATE INDEX IF NOT EXISTS %s_%s ON %s (%s)", partitionName, column, partitionName, column));
+            }
+        }
+    }
+
+    private void dropPartitions(String tableName, long cutoff) throws SQLException {
+        List<String> partitionNames = new ArrayList<String>();
+
+        PreparedStatement stmt = mConnection.prepareStatement("SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent WHERE p.relname = ?");
+
+        try {
+            stmt.setString(1, tableName);
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                partitionNames.add(rs.getString(1));
+            }
+        }
+        finally {
+            stmt.close();
+        }
+
+        for (String partitionName : partitionNames) {
+            String suffix = partitionName.substring(tableName.length() + 1);
+            boolean hourly = suffix.length() == 10;
+
+            long end;
+
+            try {
+                end = getPartitionFormat(hourly).parse(suffix).getTime() / 1000 + (hourly ? HISTORY_HOURLY : HISTORY_DAILY);
+            } catch (ParseException e) {
+                continue;
+            }
+
+            if (end <= cutoff) {
+                mLogger.info(String.format("Dropping expired partition %s", partitionName));
+                execute(mConnection, "DROP TABLE " + partitionName);
+            }
+        }
+    }
+
     private void createTables() throws SQLException {
         DatabaseMetaData meta = mConnection.getMetaData();
 
@@ -341,24 +1365,66 @@ public class GtfsRealTimeSqlRecorder {
             stmt.execute(String.format("CREATE TABLE %s (%s)", tableName, create));
             stmt.close();
 
-            String[] indexColumns = TABLES[i + 2].split(",");
+            createIndexes(mConnection, tableName, TABLES[i + 2]);
+        }
+    }
 
-            if (indexColumns.length > 0) {
-                stmt = mConnection.createStatement();
+    private static final String REPLAYED_TABLE = "gtfs_rt_replayed";
 
-                for (int j = 0; j < indexColumns.length; j++) {
-                    String column = indexColumns[j];
+    /**
+     * Records in the current transaction that a spooled cycle is being
+     * replayed, so if it commits but is never removed from the spool, e.g.
+     * after a crash, it isn't replayed a second time.
+     *
+     * @return false if the cycle has already been replayed
+     */
+    public boolean markReplayed(String spool, long cycleId) throws SQLException {
+        PreparedStatement stmt = mConnection.prepareStatement(String.format("SELECT 1 FROM %s WHERE spool = ? AND cycle_id = ?", REPLAYED_TABLE));
 
-                    if (column.length() == 0) {
-                        continue;
-                    }
+        try {
+            stmt.setString(1, spool);
+            stmt.setLong(2, cycleId);
 
-                    stmt.execute(String.format("CREATE INDEX %s_%s ON %s (%s)", tableName, column, tableName, column));
-                }
+            ResultSet rs = stmt.executeQuery();
+            boolean replayed = rs.next();
+            rs.close();
 
-                stmt.close();
+            if (replayed) {
+                return false;
             }
         }
+        finally {
+            stmt.close();
+        }
+
+        stmt = mConnection.prepareStatement(String.format("INSERT INTO %s (spool, cycle_id) VALUES (?, ?)", REPLAYED_TABLE));
+
+        try {
+            stmt.setString(1, spool);
+            stmt.setLong(2, cycleId);
+            stmt.executeUpdate();
+        }
+        finally {
+            stmt.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Forgets the replayed cycles of a spool that has been emptied, since
+     * they can't be handed out again.
+     */
+    public void clearReplayed(String spool) throws SQLException {
+        PreparedStatement stmt = mConnection.prepareStatement(String.format("DELETE FROM %s WHERE spool = ?", REPLAYED_TABLE));
+
+        try {
+            stmt.setString(1, spool);
+            stmt.executeUpdate();
+        }
+        finally {
+            stmt.close();
+        }
     }
 
     public static final String STALERT                      = "STALERT";
@@ -369,24 +1435,55 @@ public class GtfsRealTimeSqlRecorder {
     public static final String STTRIPUPDATE_STOPTIMEUPDATES = "STTRIPUPDATE_STOPTIMEUPDATES";
 
     private void openStatements() throws SQLException {
-        mStatements.put(STALERT, mConnection.prepareStatement("INSERT INTO gtfs_rt_alerts (alert_id, header, description, cause, effect, recorded) VALUES (?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS));
-        mStatements.put(STALERT_TIMERANGES, mConnection.prepareStatement("INSERT INTO gtfs_rt_alerts_timeranges (alert_id, start, finish) VALUES (?, ?, ?)", Statement.RETURN_GENERATED_KEYS));
-        mStatements.put(STALERT_ENTITIES, mConnection.prepareStatement("INSERT INTO gtfs_rt_alerts_entities (alert_id, agency_id, route_id, route_type, stop_id, trip_rship, trip_start_date, trip_start_time, trip_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS));
-        mStatements.put(STVEHICLE, mConnection.prepareStatement("INSERT INTO gtfs_rt_vehicles (congestion, status, sequence, bearing, odometer, speed, latitude, longitude, stop_id, ts, trip_sr, trip_date, trip_time, trip_id, route_id, vehicle_id, vehicle_label, vehicle_plate, recorded) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS));
-        mStatements.put(STTRIPUPDATE, mConnection.prepareStatement("INSERT INTO gtfs_rt_trip_updates (update_id, ts, trip_sr, trip_date, trip_time, trip_id, route_id, vehicle_id, vehicle_label, vehicle_plate, recorded) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS));
-        mStatements.put(STTRIPUPDATE_STOPTIMEUPDATES, mConnection.prepareStatement("INSERT INTO gtfs_rt_trip_updates_stoptimes (update_id, arrival_time, arrival_uncertainty, arrival_delay, departure_time, departure_uncertainty, departure_delay, rship, stop_id, stop_sequence) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS));
+        mStatements.put(STALERT, newBatchInsert("gtfs_rt_alerts", "alert_id, header, description, cause, effect, recorded"));
+        mStatements.put(STALERT_TIMERANGES, newBatchInsert("gtfs_rt_alerts_timeranges", "alert_id, start, finish"));
+        mStatements.put(STALERT_ENTITIES, newBatchInsert("gtfs_rt_alerts_entities", "alert_id, agency_id, route_id, route_type, stop_id, trip_rship, trip_start_date, trip_start_time, trip_id"));
+        mStatements.put(STVEHICLE, newBatchInsert("gtfs_rt_vehicles", "congestion, status, sequence, bearing, odometer, speed, latitude, longitude, stop_id, ts, trip_sr, trip_date, trip_time, trip_id, route_id, vehicle_id, vehicle_label, vehicle_plate, recorded"));
+        mStatements.put(STTRIPUPDATE, newBatchInsert("gtfs_rt_trip_updates", "update_id, ts, trip_sr, trip_date, trip_time, trip_id, route_id, vehicle_id, vehicle_label, vehicle_plate, recorded"));
+        mStatements.put(STTRIPUPDATE_STOPTIMEUPDATES, newBatchInsert("gtfs_rt_trip_updates_stoptimes", "update_id, arrival_time, arrival_uncertainty, arrival_delay, departure_time, departure_uncertainty, departure_delay, rship, stop_id, stop_sequence"));
+    }
+
+    /**
+     * Only SQLite groups rows into multi-row statements; PostgreSQL writes
+     * through COPY, so its statements are a fallback and insert row by row.
+     */
+    private BatchInsert newBatchInsert(String tableName, String columns) throws SQLException {
+        int rowsPerStatement = 1;
+
+        if (isSqlite()) {
+            rowsPerStatement = Math.min(SQLITE_MAX_COMPOUND_SELECT, SQLITE_MAX_VARIABLES / columns.split(",").length);
+        }
+
+        return new BatchInsert(mConnection, getTableName(tableName), columns, rowsPerStatement, BATCH_FLUSH_ROWS);
     }
 
-    private static final String COPY_TRIP_UPDATES            = "COPY gtfs_rt_trip_updates(update_id, ts, trip_sr, trip_date, trip_time, trip_id, route_id, vehicle_id, vehicle_label, vehicle_plate, recorded) FROM STDIN WITH DELIMITER '" + COPY_SEPARATOR + "' NULL AS ''";
-    private static final String COPY_TRIP_UPDATES_STOP_TIMES = "COPY gtfs_rt_trip_updates_stoptimes(update_id, arrival_time, arrival_uncertainty, arrival_delay, departure_time, departure_uncertainty, departure_delay, rship, stop_id, stop_sequence) FROM STDIN WITH DELIMITER '" + COPY_SEPARATOR + "' NULL AS ''";
-    private static final String COPY_VEHICLE_POSITIONS       = "COPY gtfs_rt_vehicles(congestion, status, sequence, bearing, odometer, speed, latitude, longitude, stop_id, ts, trip_sr, trip_date, trip_time, trip_id, route_id, vehicle_id, vehicle_label, vehicle_plate, recorded) FROM STDIN WITH DELIMITER '" + COPY_SEPARATOR + "' NULL AS ''";
+    private static final String COPY_TRIP_UPDATES            = "COPY %s(update_id, ts, trip_sr, trip_date, trip_time, trip_id, route_id, vehicle_id, vehicle_label, vehicle_plate, recorded) FROM STDIN";
+    private static final String COPY_ALERTS                  = "COPY %s(alert_id, header, description, cause, effect, recorded) FROM STDIN";
+    private static final String COPY_ALERTS_TIMERANGES       = "COPY %s(alert_id, start, finish) FROM STDIN";
+    private static final String COPY_ALERTS_ENTITIES         = "COPY %s(alert_id, agency_id, route_id, route_type, stop_id, trip_rship, trip_start_date, trip_start_time, trip_id) FROM STDIN";
+    private static final String COPY_TRIP_UPDATES_STOP_TIMES = "COPY %s(update_id, arrival_time, arrival_uncertainty, arrival_delay, departure_time, departure_uncertainty, departure_delay, rship, stop_id, stop_sequence) FROM STDIN";
+    private static final String COPY_VEHICLE_POSITIONS       = "COPY %s(congestion, status, sequence, bearing, odometer, speed, latitude, longitude, stop_id, ts, trip_sr, trip_date, trip_time, trip_id, route_id, vehicle_id, vehicle_label, vehicle_plate, recorded) FROM STDIN";
+
+    private static final String COPY_TEXT_OPTIONS   = " WITH DELIMITER '" + COPY_SEPARATOR + "' NULL AS ''";
+    private static final String COPY_BINARY_OPTIONS = " WITH (FORMAT binary)";
+
+    private String getCopyQuery(String copy, String tableName) {
+        return String.format(copy, getTableName(tableName)) + (mBinaryCopy ? COPY_BINARY_OPTIONS : COPY_TEXT_OPTIONS);
+    }
+
+    private DataCopier newCopier(CopyIn copyIn) {
+        DataCopier copier = copyIn == null ? new DataCopier(COPY_SEPARATOR) : new DataCopier(copyIn, COPY_SEPARATOR);
+        copier.setBinary(mBinaryCopy);
+
+        return copier;
+    }
 
     private void closeStatements() throws SQLException {
-        for (PreparedStatement stmt : mStatements.values()) {
+        for (BatchInsert stmt : mStatements.values()) {
             stmt.close();
         }
 
-        mStatements = new HashMap<String, PreparedStatement>();
+        mStatements = new HashMap<String, BatchInsert>();
     }
 
     private void recordVehicle(VehiclePosition vehicle, DataCopier copier) throws SQLException, Exception {
@@ -394,7 +1491,7 @@ public class GtfsRealTimeSqlRecorder {
             throw new Exception("No position found");
         }
 
-        PreparedStatement stmt = null;
+        BatchInsert stmt = null;
 
         DataCopierRow row = null;
 
@@ -402,7 +1499,7 @@ public class GtfsRealTimeSqlRecorder {
             stmt = mStatements.get(STVEHICLE);
         }
         else {
-            row = new DataCopierRow();
+            row = copier.newRow();
         }
 
         int congestionLevel = vehicle.hasCongestionLevel() ? vehicle.getCongestionLevel().getNumber() : CongestionLevel.UNKNOWN_CONGESTION_LEVEL_VALUE;
@@ -707,7 +1804,7 @@ public class GtfsRealTimeSqlRecorder {
             }
         }
 
-        Date recorded = new Date();
+        Date recorded = new Date(mRecordedTime);
         
         if (row == null) {
             stmt.setInt(19, (int) (recorded.getTime() / 1000));
@@ -720,29 +1817,213 @@ public class GtfsRealTimeSqlRecorder {
             copier.add(row);
         }
         else {
-            stmt.execute();
+            stmt.addBatch();
+        }
+    }
+
+    /**
+     * Discards any row an entity left half written, as transcoding does
+     * for its writers.
+     */
+    private void rollbackRows(DataCopier... copiers) {
+        for (DataCopier copier : copiers) {
+            if (copier != null) {
+                copier.rollback();
+            }
+        }
+    }
+
+    private void transcodeTripUpdate(FeedMessageReader reader, DataCopier tuCopier, DataCopier stCopier) throws SQLException, IOException {
+        CopyRowWriter tuWriter = tuCopier.getWriter();
+        CopyRowWriter stWriter = stCopier.getWriter();
+        
+        tuWriter.mark();
+        stWriter.mark();
+        
+        int recorded = (int) (mRecordedTime / 1000);
+        
+        boolean completed = false;
+        
+        try {
+            mTranscoder.writeTripUpdate(reader.getData(), reader.getEntityOffset(), reader.getEntityLength(), getUpdateId(), recorded, tuWriter, stWriter);
+            completed = true;
+        }
+        finally {
+            // Also covers values out of range for their column
+            if (!completed) {
+                tuWriter.rollback();
+                stWriter.rollback();
+            }
+        }
+        
+        tuCopier.flushIfFull();
+        stCopier.flushIfFull();
+    }
+    
+    private void transcodeVehicle(FeedMessageReader reader, DataCopier copier) throws SQLException, Exception {
+        CopyRowWriter writer = copier.getWriter();
+        writer.mark();
+        
+        int recorded = (int) (mRecordedTime / 1000);
+        boolean written = false;
+        boolean completed = false;
+        
+        try {
+            written = mTranscoder.writeVehicle(reader.getData(), reader.getEntityOffset(), reader.getEntityLength(), recorded, writer);
+            completed = true;
+        }
+        finally {
+            if (!completed) {
+                writer.rollback();
+            }
+        }
+        
+        if (!written) {
+            throw new Exception("No position found");
         }
+        
+        copier.flushIfFull();
     }
 
+    // Fetch time of the message being recorded, so replayed messages keep theirs
+    private long mRecordedTime;
+
+    // Update ids of non-incremental cycles, which restart from 1 every cycle
     private int mUpdateId = 0;
+    private int mAlertId = 0;
+
+    // Incremental cycles never reset update ids, so force a rewrite well before they overflow
+    private static final int MAX_INCREMENTAL_UPDATE_ID = Integer.MAX_VALUE / 2;
+
+    private static final String DELTA_KEYS_TABLE = "gtfs_rt_delta_keys";
+
+    /**
+     * Adds a CRC of every trip update and vehicle entity to the diffs, and
+     * fills the key lists with each entity's key by entity index.
+     */
+    private void fingerprintEntities(FeedMessageReader reader, List<String> tuKeys, List<String> vpKeys) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] data = reader.getData();
+
+        reader.rewind();
+
+        while (reader.next()) {
+            int offset = reader.getEntityOffset();
+            int length = reader.getEntityLength();
+
+            crc.reset();
+            crc.update(data, offset, length);
+
+            String key = null;
+
+            if (tuKeys != null) {
+                if (reader.hasTripUpdate()) {
+                    key = mTranscoder.getTripId(data, offset, length);
+                    mTripUpdateDiff.add(key, crc.getValue());
+                }
+
+                tuKeys.add(key);
+            }
+
+            if (vpKeys != null) {
+                key = null;
+
+                if (reader.hasVehicle()) {
+                    key = mTranscoder.getVehicleId(data, offset, length);
+                    mVehicleDiff.add(key, crc.getValue());
+                }
+
+                vpKeys.add(key);
+            }
+        }
+    }
+
+    private void deleteStaleTripUpdates(List<String> keys) throws SQLException {
+        deleteStaleRows(getTableConnection("gtfs_rt_trip_updates_stoptimes"), keys,
+                "DELETE FROM gtfs_rt_trip_updates_stoptimes s USING gtfs_rt_trip_updates t, %s k WHERE s.update_id = t.update_id AND t.trip_id = k.key",
+                "DELETE FROM gtfs_rt_trip_updates_stoptimes s USING gtfs_rt_trip_updates t WHERE s.update_id = t.update_id AND t.trip_id IS NULL");
+
+        deleteStaleRows(getTableConnection("gtfs_rt_trip_updates"), keys,
+                "DELETE FROM gtfs_rt_trip_updates t USING %s k WHERE t.trip_id = k.key",
+                "DELETE FROM gtfs_rt_trip_updates WHERE trip_id IS NULL");
+    }
+
+    /**
+     * Copies the keys into a temporary table and deletes the rows that
+     * join against it. The tables have no unique key to upsert against, so
+     * changed rows are deleted here and copied again as new rows.
+     *
+     * @param deleteQuery delete joining against the key table, whose name
+     *            is substituted for %s
+     * @param nullQuery delete for rows without a key
+     */
+    private void deleteStaleRows(Connection connection, List<String> keys, String deleteQuery, String nullQuery) throws SQLException {
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        execute(connection, String.format("CREATE TEMP TABLE IF NOT EXISTS %s (key TEXT)", DELTA_KEYS_TABLE));
+        execute(connection, "TRUNCATE " + DELTA_KEYS_TABLE);
+
+        CopyRowWriter writer = new CopyRowWriter(COPY_SEPARATOR);
+        boolean hasNull = false;
+
+        for (String key : keys) {
+            if (key == null) {
+                hasNull = true;
+                continue;
+            }
+
+            writer.startRow();
+            writer.add(key);
+            writer.endRow();
+        }
+
+        if (writer.getRowCount() > 0) {
+            CopyIn copyIn = new CopyManager((BaseConnection) connection).copyIn("COPY " + DELTA_KEYS_TABLE + " FROM STDIN" + COPY_TEXT_OPTIONS);
+            writer.flush(copyIn);
+            copyIn.endCopy();
+
+            execute(connection, String.format(deleteQuery, DELTA_KEYS_TABLE));
+        }
+
+        if (hasNull) {
+            execute(connection, nullQuery);
+        }
+    }
+
+    private void startedDiff(EntityDiff diff) {
+        if (!mCycleDiffs.contains(diff)) {
+            mCycleDiffs.add(diff);
+        }
+    }
 
     private void resetUpdateId() {
-        mUpdateId = 0;
+        if (isIncremental()) {
+            mIncrementalState.resetUpdateId();
+        }
+        else {
+            mUpdateId = 0;
+        }
     }
 
+    /**
+     * Incremental cycles draw from the shared IncrementalState, as the rows
+     * of unchanged trip updates keep the ids another recorder gave them.
+     */
     private int getUpdateId() {
-        return ++mUpdateId;
+        return isIncremental() ? mIncrementalState.nextUpdateId() : ++mUpdateId;
     }
 
-    private void recordTripUpdate(TripUpdate tripUpdate, DataCopier tuCopier, DataCopier stCopier) throws SQLException {
-        PreparedStatement stmt = null;
+    private void recordTripUpdate(TripUpdate tripUpdate, DataCopier tuCopier, DataCopier stCopier) throws SQLException, IOException {
+        BatchInsert stmt = null;
 
         int updateId = getUpdateId();
 
         DataCopierRow tuRow = null;
 
         if (tuCopier != null) {
-            tuRow = new DataCopierRow();
+            tuRow = tuCopier.newRow();
         }
         else {
             stmt = mStatements.get(STTRIPUPDATE);
@@ -938,7 +2219,7 @@ public class GtfsRealTimeSqlRecorder {
             }
         }
         
-        Date recorded = new Date();
+        Date recorded = new Date(mRecordedTime);
         
         if (tuRow == null) {
             stmt.setInt(11, (int) (recorded.getTime() / 1000));
@@ -965,7 +2246,7 @@ public class GtfsRealTimeSqlRecorder {
             DataCopierRow stRow = null;
 
             if (stmt == null) {
-                stRow = new DataCopierRow();
+                stRow = stCopier.newRow();
             }
 
             if (stRow == null) {
@@ -1149,146 +2430,333 @@ public class GtfsRealTimeSqlRecorder {
         }
     }
 
-    private void recordAlert(Alert alert) throws SQLException {
-        PreparedStatement stmt = mStatements.get(STALERT);
+    private void recordAlert(Alert alert, DataCopier alCopier, DataCopier atCopier, DataCopier aeCopier) throws SQLException, IOException {
+        BatchInsert stmt = null;
+        DataCopierRow row = null;
 
-        int updateId = getUpdateId();
+        if (alCopier == null) {
+            stmt = mStatements.get(STALERT);
+        }
+        else {
+            row = alCopier.newRow();
+        }
+
+        int updateId = ++mAlertId;
 
-        stmt.setInt(1, updateId);
+        if (row == null) {
+            stmt.setInt(1, updateId);
+        }
+        else {
+            row.add(updateId);
+        }
 
         if (alert.hasHeaderText()) {
-            stmt.setString(2, getString(alert.getHeaderText()));
+            if (row == null) {
+                stmt.setString(2, getString(alert.getHeaderText()));
+            }
+            else {
+                row.add(getString(alert.getHeaderText()));
+            }
         }
         else {
-            stmt.setNull(2, Types.VARCHAR);
+            if (row == null) {
+                stmt.setNull(2, Types.VARCHAR);
+            }
+            else {
+                row.addNull();
+            }
         }
 
         if (alert.hasDescriptionText()) {
-            stmt.setString(3, getString(alert.getDescriptionText()));
+            if (row == null) {
+                stmt.setString(3, getString(alert.getDescriptionText()));
+            }
+            else {
+                row.add(getString(alert.getDescriptionText()));
+            }
         }
         else {
-            stmt.setNull(3, Types.VARCHAR);
+            if (row == null) {
+                stmt.setNull(3, Types.VARCHAR);
+            }
+            else {
+                row.addNull();
+            }
         }
 
         if (alert.hasCause()) {
-            stmt.setInt(4, alert.getCause().getNumber());
+            if (row == null) {
+                stmt.setInt(4, alert.getCause().getNumber());
+            }
+            else {
+                row.add(alert.getCause().getNumber());
+            }
         }
         else {
-            stmt.setNull(4, Types.INTEGER);
+            if (row == null) {
+                stmt.setNull(4, Types.INTEGER);
+            }
+            else {
+                row.addNull();
+            }
         }
 
         if (alert.hasEffect()) {
-            stmt.setInt(5, alert.getEffect().getNumber());
+            if (row == null) {
+                stmt.setInt(5, alert.getEffect().getNumber());
+            }
+            else {
+                row.add(alert.getEffect().getNumber());
+            }
         }
         else {
-            stmt.setNull(5, Types.INTEGER);
+            if (row == null) {
+                stmt.setNull(5, Types.INTEGER);
+            }
+            else {
+                row.addNull();
+            }
         }
 
-        Date recorded = new Date();
-        stmt.setInt(6, (int) (recorded.getTime() / 1000));
+        Date recorded = new Date(mRecordedTime);
 
-        stmt.addBatch();
-
-        stmt = mStatements.get(STALERT_TIMERANGES);
+        if (row == null) {
+            stmt.setInt(6, (int) (recorded.getTime() / 1000));
+            stmt.addBatch();
+        }
+        else {
+            row.add((int) (recorded.getTime() / 1000));
+            alCopier.add(row);
+        }
 
         for (TimeRange timeRange : alert.getActivePeriodList()) {
-            stmt.setInt(1, updateId);
+            if (atCopier == null) {
+                stmt = mStatements.get(STALERT_TIMERANGES);
+                stmt.setInt(1, updateId);
+            }
+            else {
+                row = atCopier.newRow();
+                row.add(updateId);
+            }
 
             if (timeRange.hasStart()) {
-                stmt.setLong(2, timeRange.getStart());
+                if (row == null) {
+                    stmt.setLong(2, timeRange.getStart());
+                }
+                else {
+                    row.add(timeRange.getStart());
+                }
             }
             else {
-                stmt.setNull(2, Types.INTEGER);
+                if (row == null) {
+                    stmt.setNull(2, Types.INTEGER);
+                }
+                else {
+                    row.addNull();
+                }
             }
 
             if (timeRange.hasEnd()) {
-                stmt.setLong(3, timeRange.getEnd());
+                if (row == null) {
+                    stmt.setLong(3, timeRange.getEnd());
+                }
+                else {
+                    row.add(timeRange.getEnd());
+                }
             }
             else {
-                stmt.setNull(3, Types.INTEGER);
+                if (row == null) {
+                    stmt.setNull(3, Types.INTEGER);
+                }
+                else {
+                    row.addNull();
+                }
             }
 
-            stmt.addBatch();
+            if (row == null) {
+                stmt.addBatch();
+            }
+            else {
+                atCopier.add(row);
+            }
         }
 
-        stmt = mStatements.get(STALERT_ENTITIES);
-
         for (EntitySelector entity : alert.getInformedEntityList()) {
-            stmt.clearParameters();
-
-            stmt.setInt(1, updateId);
+            if (aeCopier == null) {
+                stmt = mStatements.get(STALERT_ENTITIES);
+                stmt.clearParameters();
+                stmt.setInt(1, updateId);
+            }
+            else {
+                row = aeCopier.newRow();
+                row.add(updateId);
+            }
 
             if (entity.hasAgencyId()) {
-                stmt.setString(2, entity.getAgencyId());
+                if (row == null) {
+                    stmt.setString(2, entity.getAgencyId());
+                }
+                else {
+                    row.add(entity.getAgencyId());
+                }
             }
             else {
-                stmt.setNull(2, Types.VARCHAR);
+                if (row == null) {
+                    stmt.setNull(2, Types.VARCHAR);
+                }
+                else {
+                    row.addNull();
+                }
             }
 
             if (entity.hasRouteId()) {
-                stmt.setString(3, entity.getRouteId());
+                if (row == null) {
+                    stmt.setString(3, entity.getRouteId());
+                }
+                else {
+                    row.add(entity.getRouteId());
+                }
             }
             else {
-                stmt.setNull(3, Types.VARCHAR);
+                if (row == null) {
+                    stmt.setNull(3, Types.VARCHAR);
+                }
+                else {
+                    row.addNull();
+                }
             }
 
             if (entity.hasRouteType()) {
-                stmt.setInt(4, entity.getRouteType());
+                if (row == null) {
+                    stmt.setInt(4, entity.getRouteType());
+                }
+                else {
+                    row.add(entity.getRouteType());
+                }
             }
             else {
-                stmt.setNull(4, Types.INTEGER);
+                if (row == null) {
+                    stmt.setNull(4, Types.INTEGER);
+                }
+                else {
+                    row.addNull();
+                }
             }
 
             if (entity.hasStopId()) {
-                stmt.setString(5, entity.getStopId());
+                if (row == null) {
+                    stmt.setString(5, entity.getStopId());
+                }
+                else {
+                    row.add(entity.getStopId());
+                }
             }
             else {
-                stmt.setNull(5, Types.VARCHAR);
+                if (row == null) {
+                    stmt.setNull(5, Types.VARCHAR);
+                }
+                else {
+                    row.addNull();
+                }
             }
 
             if (entity.hasTrip()) {
                 TripDescriptor trip = entity.getTrip();
 
                 if (trip.hasScheduleRelationship()) {
-                    stmt.setInt(6, trip.getScheduleRelationship().getNumber());
+                    if (row == null) {
+                        stmt.setInt(6, trip.getScheduleRelationship().getNumber());
+                    }
+                    else {
+                        row.add(trip.getScheduleRelationship().getNumber());
+                    }
                 }
                 else {
-                    stmt.setNull(6, Types.INTEGER);
+                    if (row == null) {
+                        stmt.setNull(6, Types.INTEGER);
+                    }
+                    else {
+                        row.addNull();
+                    }
                 }
 
                 if (trip.hasStartDate()) {
-                    stmt.setString(7, trip.getStartDate());
+                    if (row == null) {
+                        stmt.setString(7, trip.getStartDate());
+                    }
+                    else {
+                        row.add(trip.getStartDate());
+                    }
                 }
                 else {
-                    stmt.setNull(7, Types.VARCHAR);
+                    if (row == null) {
+                        stmt.setNull(7, Types.VARCHAR);
+                    }
+                    else {
+                        row.addNull();
+                    }
                 }
 
                 if (trip.hasStartTime()) {
-                    stmt.setString(8, trip.getStartTime());
+                    if (row == null) {
+                        stmt.setString(8, trip.getStartTime());
+                    }
+                    else {
+                        row.add(trip.getStartTime());
+                    }
                 }
                 else {
-                    stmt.setNull(8, Types.VARCHAR);
+                    if (row == null) {
+                        stmt.setNull(8, Types.VARCHAR);
+                    }
+                    else {
+                        row.addNull();
+                    }
                 }
 
                 if (trip.hasTripId()) {
-                    stmt.setString(9, trip.getTripId());
+                    if (row == null) {
+                        stmt.setString(9, trip.getTripId());
+                    }
+                    else {
+                        row.add(trip.getTripId());
+                    }
                 }
                 else {
-                    stmt.setNull(9, Types.VARCHAR);
+                    if (row == null) {
+                        stmt.setNull(9, Types.VARCHAR);
+                    }
+                    else {
+                        row.addNull();
+                    }
                 }
             }
             else {
-                stmt.setNull(6, Types.INTEGER);
-                stmt.setNull(7, Types.VARCHAR);
-                stmt.setNull(8, Types.VARCHAR);
-                stmt.setNull(9, Types.VARCHAR);
+                if (row == null) {
+                    stmt.setNull(6, Types.INTEGER);
+                    stmt.setNull(7, Types.VARCHAR);
+                    stmt.setNull(8, Types.VARCHAR);
+                    stmt.setNull(9, Types.VARCHAR);
+                }
+                else {
+                    row.addNull(4);
+                }
             }
 
-            stmt.addBatch();
+            if (row == null) {
+                stmt.addBatch();
+            }
+            else {
+                aeCopier.add(row);
+            }
         }
     }
 
     private String getString(TranslatedString str) {
+        if (str.getTranslationCount() == 0) {
+            return null;
+        }
+
         return str.getTranslation(0).getText();
     }
 
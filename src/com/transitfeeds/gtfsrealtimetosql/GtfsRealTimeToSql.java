@@ -4,7 +4,10 @@ import java.io.File;
 import java.net.URI;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import java.util.zip.CRC32;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -27,6 +30,28 @@ public class GtfsRealTimeToSql {
 		options.addOption("username", true, "Username");
 		options.addOption("password", true, "Password");
 		options.addOption("refresh", true, "Refresh seconds");
+		options.addOption("adaptive", false, "Poll shortly after each feed's expected next update, learned from its timestamps");
+		options.addOption("minrefresh", true, "Minimum refresh seconds in adaptive mode");
+		options.addOption("maxrefresh", true, "Maximum refresh seconds in adaptive mode, defaults to 4x the refresh");
+		options.addOption("httpconns", true, "Maximum HTTP connections per host");
+		options.addOption("httpidle", true, "Seconds before idle HTTP connections are closed");
+		options.addOption("fetchtimeout", true, "Seconds to wait for the feeds of a cycle to load");
+		options.addOption("maxbackoff", true, "Maximum seconds between retries of a failing feed or database, and between probes of a parked feed");
+		options.addOption("breakerfailures", true, "Consecutive failures before a feed is parked");
+		options.addOption("spool", true, "Directory to spool cycles to while the database is unavailable, replayed once it's back");
+		options.addOption("spoolmb", true, "Maximum megabytes spooled per feed");
+		options.addOption("threads", true, "Threads shared by all feeds for fetching");
+		options.addOption("dbconns", true, "Maximum database connections, and concurrent recorders, shared by all feeds");
+		options.addOption("transcode", false, "Write COPY rows directly from protobuf bytes (PostgreSQL only)");
+		options.addOption("copybinary", false, "Use binary COPY format (PostgreSQL only)");
+		options.addOption("copyparallel", false, "Load tables concurrently over separate connections (PostgreSQL only, requires max_prepared_transactions > 0)");
+		options.addOption("snapshot", false, "Load into staging tables and swap them in instead of deleting rows (PostgreSQL only; grants and dependent views are not kept)");
+		options.addOption("incremental", false, "Only rewrite trip updates and vehicles that changed since the last cycle (PostgreSQL only)");
+		options.addOption("history", false, "Append every cycle to partitioned history tables (PostgreSQL 10+ only)");
+		options.addOption("historyhourly", false, "Partition history tables hourly instead of daily");
+		options.addOption("historydays", true, "Days of history to keep, 0 keeps everything");
+		options.addOption("metricsport", true, "Port to serve Prometheus metrics on at /metrics");
+		options.addOption("slowcycle", true, "Log a timing trace of cycles taking longer than this fraction of the refresh, 0 disables (default 1)");
 
 		CommandLineParser parser = new GnuParser();
 		CommandLine line = parser.parse(options, args);
@@ -70,6 +95,148 @@ public class GtfsRealTimeToSql {
 
 		String connStr = line.getOptionValue("s");
 		
+		int httpConns = FeedHttpClient.DEFAULT_MAX_PER_ROUTE;
+		long httpIdleMs = FeedHttpClient.DEFAULT_IDLE_MS;
+		
+		try {
+		    httpConns = Math.max(1, Integer.valueOf(line.getOptionValue("httpconns")));
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		try {
+		    httpIdleMs = Long.valueOf(line.getOptionValue("httpidle")) * 1000;
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		FeedHttpClient.configure(httpConns, FeedHttpClient.DEFAULT_MAX_TOTAL, httpIdleMs);
+		
+		long historyRetention = 0;
+		
+		try {
+		    historyRetention = Math.max(0, Long.valueOf(line.getOptionValue("historydays"))) * 86400;
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		long historyInterval = line.hasOption("historyhourly") ? GtfsRealTimeSqlRecorder.HISTORY_HOURLY : GtfsRealTimeSqlRecorder.HISTORY_DAILY;
+		
+		int threads = Math.min(urls.length, FeedScheduler.DEFAULT_THREADS);
+		int dbConns = RecorderPool.DEFAULT_MAX_SIZE;
+		
+		try {
+		    threads = Math.max(1, Integer.valueOf(line.getOptionValue("threads")));
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		try {
+		    dbConns = Math.max(1, Integer.valueOf(line.getOptionValue("dbconns")));
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		long fetchTimeoutMs = FeedRunner.DEFAULT_FETCH_TIMEOUT_MS;
+		
+		try {
+		    fetchTimeoutMs = Math.max(1, Long.valueOf(line.getOptionValue("fetchtimeout"))) * 1000;
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		long maxBackoffMs = FeedRunner.DEFAULT_MAX_BACKOFF_MS;
+		int breakerFailures = CircuitBreaker.DEFAULT_THRESHOLD;
+		
+		try {
+		    maxBackoffMs = Math.max(1, Long.valueOf(line.getOptionValue("maxbackoff"))) * 1000;
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		try {
+		    breakerFailures = Math.max(1, Integer.valueOf(line.getOptionValue("breakerfailures")));
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		File spoolDir = null;
+		long spoolBytes = FeedSpool.DEFAULT_MAX_BYTES;
+		
+		if (line.hasOption("spool")) {
+		    spoolDir = new File(line.getOptionValue("spool"));
+		    spoolDir.mkdirs();
+		}
+		
+		try {
+		    spoolBytes = Math.max(1, Long.valueOf(line.getOptionValue("spoolmb"))) * 1024 * 1024;
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		double slowCycle = FeedRunner.DEFAULT_SLOW_CYCLE;
+		
+		try {
+		    slowCycle = Math.max(0, Double.valueOf(line.getOptionValue("slowcycle")));
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		long minRefresh = 5;
+		long maxRefresh = 0;
+		
+		try {
+		    minRefresh = Math.max(1, Long.valueOf(line.getOptionValue("minrefresh")));
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		try {
+		    maxRefresh = Long.valueOf(line.getOptionValue("maxrefresh"));
+		}
+		catch (Exception e) {
+		    
+		}
+		
+		Logger logger = Logger.getLogger(connStr);
+		logger.setLevel(Level.FINEST);
+		
+		if (logFile != null) {
+		    Handler handler = new FileHandler(logFile.getAbsolutePath(), true);
+		    SimpleFormatter formatter = new SimpleFormatter();
+		    handler.setFormatter(formatter);
+		    
+		    logger.addHandler(handler);
+		}
+		
+		if (line.hasOption("metricsport")) {
+		    MetricsServer metricsServer = new MetricsServer(Integer.valueOf(line.getOptionValue("metricsport")));
+		    metricsServer.start();
+		    
+		    logger.info(String.format("Serving metrics on port %s", line.getOptionValue("metricsport")));
+		}
+		
+		RecorderPool recorderPool = new RecorderPool(logger, connStr, line.getOptionValue("dbusername"), line.getOptionValue("dbpassword"), dbConns);
+		recorderPool.setTranscode(line.hasOption("transcode"));
+		recorderPool.setBinaryCopy(line.hasOption("copybinary"));
+		recorderPool.setParallelCopy(line.hasOption("copyparallel"));
+		recorderPool.setSnapshot(line.hasOption("snapshot"));
+		recorderPool.setIncremental(line.hasOption("incremental"));
+		recorderPool.setHistory(line.hasOption("history"), historyInterval, historyRetention);
+		
+		FeedScheduler scheduler = new FeedScheduler(logger, recorderPool, threads, dbConns);
+		
 		for (int i = 0; i < urls.length; i++) {
 		    long seconds = 0;
 		    
@@ -88,23 +255,30 @@ public class GtfsRealTimeToSql {
 		    
 	        seconds = Math.max(15, seconds);
 	        
-			FeedRunnerThread thread = new FeedRunnerThread(connStr, line.getOptionValue("dbusername"), line.getOptionValue("dbpassword"), seconds * 1000);
-
-			if (logFile != null) {
-                Handler handler = new FileHandler(logFile.getAbsolutePath(), true);
-                SimpleFormatter formatter = new SimpleFormatter();
-                handler.setFormatter(formatter);
-                
-                thread.addLogHandler(handler);
+			FeedRunner runner = new FeedRunner(scheduler, seconds * 1000);
+			runner.setFetchTimeout(fetchTimeoutMs);
+			runner.setBackoff(maxBackoffMs, breakerFailures);
+			runner.setSlowCycle(slowCycle);
+			
+			if (line.hasOption("adaptive")) {
+			    runner.setAdaptive(minRefresh * 1000, (maxRefresh > 0 ? maxRefresh : seconds * 4) * 1000);
 			}
 			
 			URI uri = new URI(urls[i]);
 			
+			if (spoolDir != null) {
+			    // Named after the feed so a restart replays what it left behind
+			    CRC32 crc = new CRC32();
+			    crc.update(urls[i].getBytes("UTF-8"));
+			    
+			    runner.setSpool(new FeedSpool(new File(spoolDir, String.format("gtfsrt-%08x.spool", crc.getValue())), spoolBytes));
+			}
+			
 			GtfsRealTimeFeed feed = new GtfsRealTimeFeed(uri);
 			feed.setOutputHeaders(line.hasOption("h"));
 			feed.setCredentials(username, password);
-			thread.addFeed(feed);
-			thread.start();		
+			runner.addFeed(feed);
+			scheduler.start(runner);
 		}
 	}
 
@@ -0,0 +1,60 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * What incremental recording knows about the database's tables: the
+ * fingerprints of the rows in gtfs_rt_trip_updates and gtfs_rt_vehicles,
+ * and the last update_id given to a trip update.
+ *
+ * This describes the tables rather than any one connection, so every
+ * recorder writing to the same database must share one instance, e.g. the
+ * recorders of a RecorderPool. Otherwise a recorder handed a feed's next
+ * cycle diffs it against stale fingerprints and reuses update ids that are
+ * still in the table.
+ *
+ * The diffs are only consistent within one cycle at a time, so recorders
+ * sharing an instance take turns: each holds the cycle lock from begin()
+ * until commit() or rollback().
+ */
+public class IncrementalState {
+
+    private EntityDiff mTripUpdateDiff = new EntityDiff();
+    private EntityDiff mVehicleDiff = new EntityDiff();
+    private int mUpdateId = 0;
+
+    // A semaphore rather than a lock, as a recorder may be closed, and its
+    // cycle abandoned, from a thread other than the one that began it
+    private Semaphore mCycleLock = new Semaphore(1);
+
+    public void lockCycle() {
+        mCycleLock.acquireUninterruptibly();
+    }
+
+    public void unlockCycle() {
+        mCycleLock.release();
+    }
+
+    public EntityDiff getTripUpdateDiff() {
+        return mTripUpdateDiff;
+    }
+
+    public EntityDiff getVehicleDiff() {
+        return mVehicleDiff;
+    }
+
+    public synchronized int getLastUpdateId() {
+        return mUpdateId;
+    }
+
+    public synchronized int nextUpdateId() {
+        return ++mUpdateId;
+    }
+
+    /**
+     * Only safe once gtfs_rt_trip_updates has been cleared.
+     */
+    public synchronized void resetUpdateId() {
+        mUpdateId = 0;
+    }
+}
@@ -0,0 +1,266 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide counters, gauges and histograms, rendered in the Prometheus
+ * text exposition format by scrape(). Every series is keyed by its label
+ * values, e.g. the feed URL or table name.
+ */
+public class Metrics {
+
+    public static final double[] SECONDS_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+    public static final double[] BYTES_BUCKETS   = { 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216, 67108864 };
+
+    private static List<Metric> sMetrics = new ArrayList<Metric>();
+
+    public static final Histogram FETCH_SECONDS      = new Histogram("gtfsrt_fetch_duration_seconds", "Time to request and download a feed, including 304 responses", SECONDS_BUCKETS, "feed");
+    public static final Histogram FETCH_BYTES        = new Histogram("gtfsrt_fetch_bytes", "Bytes received per feed download, before decompression", BYTES_BUCKETS, "feed");
+    public static final Histogram DECOMPRESS_SECONDS = new Histogram("gtfsrt_decompress_duration_seconds", "Time spent inflating gzip or deflate feed downloads", SECONDS_BUCKETS, "feed");
+    public static final Histogram PARSE_SECONDS      = new Histogram("gtfsrt_parse_duration_seconds", "Time to scan a downloaded feed message", SECONDS_BUCKETS, "feed");
+    public static final Histogram RECORD_LAG_SECONDS = new Histogram("gtfsrt_record_lag_seconds", "Time from a message's publication to its commit", SECONDS_BUCKETS, "feed");
+    public static final Gauge     LAST_RECORDED      = new Gauge("gtfsrt_last_recorded_timestamp_seconds", "Publication time of the last message committed", "feed");
+    public static final Counter   SKIPPED_CYCLES     = new Counter("gtfsrt_skipped_cycles_total", "Cycles skipped because none of a runner's feeds changed", "feed");
+    public static final Counter   ERRORS             = new Counter("gtfsrt_errors_total", "Failed feed loads and records, by type", "feed", "type");
+
+    public static final Counter   ROWS_WRITTEN       = new Counter("gtfsrt_rows_written_total", "Rows committed, by feed and table", "feed", "table");
+    public static final Histogram COPY_SECONDS       = new Histogram("gtfsrt_copy_duration_seconds", "Time from starting a COPY to ending it", SECONDS_BUCKETS, "feed", "table");
+    public static final Histogram COMMIT_SECONDS     = new Histogram("gtfsrt_commit_duration_seconds", "Time to commit the transaction of each feed's cycle", SECONDS_BUCKETS, "feed");
+    public static final Gauge     SPOOL_BYTES        = new Gauge("gtfsrt_spool_bytes", "Bytes of spooled cycles waiting to be replayed", "spool");
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+
+        synchronized (sMetrics) {
+            for (Metric metric : sMetrics) {
+                metric.write(sb);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    public static double seconds(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    public static abstract class Metric {
+
+        private String mName;
+        private String mHelp;
+        private String mType;
+        private String[] mLabelNames;
+
+        protected Metric(String name, String help, String type, String[] labelNames) {
+            mName = name;
+            mHelp = help;
+            mType = type;
+            mLabelNames = labelNames;
+
+            synchronized (sMetrics) {
+                sMetrics.add(this);
+            }
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        synchronized void write(StringBuilder sb) {
+            sb.append("# HELP ").append(mName).append(' ').append(mHelp).append('\n');
+            sb.append("# TYPE ").append(mName).append(' ').append(mType).append('\n');
+
+            writeSeries(sb);
+        }
+
+        abstract void writeSeries(StringBuilder sb);
+
+        protected List<String> key(String[] labels) {
+            if (labels.length != mLabelNames.length) {
+                throw new IllegalArgumentException(String.format("%s takes %d labels, got %d", mName, mLabelNames.length, labels.length));
+            }
+
+            return Arrays.asList(labels);
+        }
+
+        /**
+         * Appends name{labels} with an optional extra label, e.g. a
+         * histogram bucket's le.
+         */
+        protected void appendSeries(StringBuilder sb, String name, List<String> labels, String extraName, String extraValue) {
+            sb.append(name);
+
+            if (labels.isEmpty() && extraName == null) {
+                return;
+            }
+
+            sb.append('{');
+
+            for (int i = 0; i < labels.size(); i++) {
+                appendLabel(sb, i > 0, mLabelNames[i], labels.get(i));
+            }
+
+            if (extraName != null) {
+                appendLabel(sb, !labels.isEmpty(), extraName, extraValue);
+            }
+
+            sb.append('}');
+        }
+
+        private void appendLabel(StringBuilder sb, boolean separator, String name, String value) {
+            if (separator) {
+                sb.append(',');
+            }
+
+            sb.append(name).append("=\"");
+
+            String str = value == null ? "" : value;
+
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                }
+                else if (c == '\n') {
+                    sb.append("\\n");
+                }
+                else {
+                    sb.append(c);
+                }
+            }
+
+            sb.append('"');
+        }
+
+        protected static String format(double value) {
+            if (value == Double.POSITIVE_INFINITY) {
+                return "+Inf";
+            }
+
+            if (value == (long) value) {
+                return Long.toString((long) value);
+            }
+
+            return Double.toString(value);
+        }
+    }
+
+    public static class Counter extends Metric {
+
+        private Map<List<String>, Double> mValues = new LinkedHashMap<List<String>, Double>();
+
+        public Counter(String name, String help, String... labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        public void inc(String... labels) {
+            inc(1, labels);
+        }
+
+        public synchronized void inc(double amount, String... labels) {
+            List<String> key = key(labels);
+            Double value = mValues.get(key);
+
+            mValues.put(key, value == null ? amount : value + amount);
+        }
+
+        @Override
+        void writeSeries(StringBuilder sb) {
+            for (Map.Entry<List<String>, Double> entry : mValues.entrySet()) {
+                appendSeries(sb, getName(), entry.getKey(), null, null);
+                sb.append(' ').append(format(entry.getValue())).append('\n');
+            }
+        }
+    }
+
+    public static class Gauge extends Metric {
+
+        private Map<List<String>, Double> mValues = new LinkedHashMap<List<String>, Double>();
+
+        public Gauge(String name, String help, String... labelNames) {
+            super(name, help, "gauge", labelNames);
+        }
+
+        public synchronized void set(double value, String... labels) {
+            mValues.put(key(labels), value);
+        }
+
+        @Override
+        void writeSeries(StringBuilder sb) {
+            for (Map.Entry<List<String>, Double> entry : mValues.entrySet()) {
+                appendSeries(sb, getName(), entry.getKey(), null, null);
+                sb.append(' ').append(format(entry.getValue())).append('\n');
+            }
+        }
+    }
+
+    public static class Histogram extends Metric {
+
+        private double[] mBuckets;
+        private Map<List<String>, Series> mSeries = new LinkedHashMap<List<String>, Series>();
+
+        private static class Series {
+            long[] mCounts;
+            long mCount = 0;
+            double mSum = 0;
+        }
+
+        public Histogram(String name, String help, double[] buckets, String... labelNames) {
+            super(name, help, "histogram", labelNames);
+            mBuckets = buckets;
+        }
+
+        public synchronized void observe(double value, String... labels) {
+            List<String> key = key(labels);
+            Series series = mSeries.get(key);
+
+            if (series == null) {
+                series = new Series();
+                series.mCounts = new long[mBuckets.length];
+                mSeries.put(key, series);
+            }
+
+            for (int i = 0; i < mBuckets.length; i++) {
+                if (value <= mBuckets[i]) {
+                    series.mCounts[i]++;
+                    break;
+                }
+            }
+
+            series.mCount++;
+            series.mSum += value;
+        }
+
+        @Override
+        void writeSeries(StringBuilder sb) {
+            for (Map.Entry<List<String>, Series> entry : mSeries.entrySet()) {
+                Series series = entry.getValue();
+                long cumulative = 0;
+
+                for (int i = 0; i < mBuckets.length; i++) {
+                    cumulative += series.mCounts[i];
+
+                    appendSeries(sb, getName() + "_bucket", entry.getKey(), "le", format(mBuckets[i]));
+                    sb.append(' ').append(cumulative).append('\n');
+                }
+
+                appendSeries(sb, getName() + "_bucket", entry.getKey(), "le", "+Inf");
+                sb.append(' ').append(series.mCount).append('\n');
+
+                appendSeries(sb, getName() + "_sum", entry.getKey(), null, null);
+                sb.append(' ').append(format(series.mSum)).append('\n');
+
+                appendSeries(sb, getName() + "_count", entry.getKey(), null, null);
+                sb.append(' ').append(series.mCount).append('\n');
+            }
+        }
+    }
+}
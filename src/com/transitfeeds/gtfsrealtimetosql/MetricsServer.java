@@ -0,0 +1,64 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves Metrics.scrape() at /metrics for Prometheus to poll, using the
+ * HTTP server bundled with the JDK.
+ */
+public class MetricsServer {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private HttpServer mServer;
+
+    public MetricsServer(int port) throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(port), 0);
+        mServer.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    String method = exchange.getRequestMethod();
+
+                    if (!method.equals("GET") && !method.equals("HEAD")) {
+                        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+
+                    byte[] body = Metrics.scrape().getBytes(CopyRowWriter.UTF8);
+
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+
+                    if (method.equals("HEAD")) {
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+
+                    exchange.sendResponseHeaders(200, body.length);
+
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+}
@@ -0,0 +1,225 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of database connections, each with a started recorder, shared
+ * by every feed. Feeds borrow a recorder only for the duration of a cycle's
+ * record and commit, so the number of connections no longer grows with the
+ * number of feeds.
+ */
+public class RecorderPool {
+
+    public static final int DEFAULT_MAX_SIZE = 4;
+
+    private String mConnectionStr, mUsername, mPassword;
+    private int mMaxSize;
+    private Logger mLogger;
+
+    private LinkedList<PooledRecorder> mIdle = new LinkedList<PooledRecorder>();
+    private int mSize = 0;
+    private boolean mClosed = false;
+
+    private boolean mTranscode = false;
+    private boolean mBinaryCopy = false;
+    private boolean mParallelCopy = false;
+    private boolean mSnapshot = false;
+    private boolean mIncremental = false;
+    private boolean mHistory = false;
+    private long mHistoryInterval = GtfsRealTimeSqlRecorder.HISTORY_DAILY;
+    private long mHistoryRetention = 0;
+
+    // Describes the tables every pooled recorder writes to, so they all share it
+    private IncrementalState mIncrementalState = new IncrementalState();
+
+    public RecorderPool(Logger logger, String connectionStr, String username, String password, int maxSize) throws ClassNotFoundException {
+        mLogger = logger;
+        mConnectionStr = connectionStr;
+        mUsername = username;
+        mPassword = password;
+        mMaxSize = Math.max(1, maxSize);
+
+        if (mConnectionStr.startsWith("jdbc:sqlite:")) {
+            Class.forName("org.sqlite.JDBC");
+        }
+        else if (mConnectionStr.startsWith("jdbc:postgresql:")) {
+            Class.forName("org.postgresql.Driver");
+        }
+    }
+
+    public void setTranscode(boolean transcode) {
+        mTranscode = transcode;
+    }
+
+    public void setBinaryCopy(boolean binaryCopy) {
+        mBinaryCopy = binaryCopy;
+    }
+
+    /**
+     * Each pooled recorder then holds three connections instead of one.
+     */
+    public void setParallelCopy(boolean parallelCopy) {
+        mParallelCopy = parallelCopy;
+    }
+
+    public void setSnapshot(boolean snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    public void setHistory(boolean history, long intervalSeconds, long retentionSeconds) {
+        mHistory = history;
+        mHistoryInterval = intervalSeconds;
+        mHistoryRetention = retentionSeconds;
+    }
+
+    public String getConnectionStr() {
+        return mConnectionStr;
+    }
+
+    /**
+     * Returns an idle recorder, connecting a new one if the pool isn't full,
+     * otherwise waits for one to be released.
+     */
+    public PooledRecorder acquire() throws SQLException, InterruptedException {
+        synchronized (this) {
+            while (mIdle.isEmpty() && mSize >= mMaxSize && !mClosed) {
+                wait();
+            }
+
+            if (mClosed) {
+                throw new SQLException("Recorder pool is closed");
+            }
+
+            if (!mIdle.isEmpty()) {
+                return mIdle.removeFirst();
+            }
+
+            mSize++;
+        }
+
+        try {
+            return open();
+        }
+        catch (SQLException e) {
+            synchronized (this) {
+                mSize--;
+                notifyAll();
+            }
+
+            throw e;
+        }
+    }
+
+    public synchronized void release(PooledRecorder recorder) {
+        if (mClosed) {
+            recorder.close();
+            return;
+        }
+
+        mIdle.addFirst(recorder);
+        notifyAll();
+    }
+
+    /**
+     * Closes a recorder whose connection can't be reused, e.g. one left with
+     * a copy in progress.
+     */
+    public void discard(PooledRecorder recorder) {
+        mLogger.warning(String.format("Disconnecting from %s", mConnectionStr));
+        recorder.close();
+
+        synchronized (this) {
+            mSize--;
+            notifyAll();
+        }
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+
+        for (PooledRecorder recorder : mIdle) {
+            recorder.close();
+        }
+
+        mIdle.clear();
+        notifyAll();
+    }
+
+    private PooledRecorder open() throws SQLException {
+        mLogger.info(String.format("Connecting to database: %s", mConnectionStr));
+
+        PooledRecorder pooled = new PooledRecorder();
+
+        try {
+            pooled.mConnection = DriverManager.getConnection(mConnectionStr, mUsername, mPassword);
+
+            GtfsRealTimeSqlRecorder recorder = new GtfsRealTimeSqlRecorder(mLogger, pooled.mConnection);
+            recorder.setTranscode(mTranscode);
+            recorder.setBinaryCopy(mBinaryCopy);
+            recorder.setSnapshot(mSnapshot);
+            recorder.setIncremental(mIncremental);
+            recorder.setIncrementalState(mIncrementalState);
+            recorder.setHistory(mHistory);
+            recorder.setHistoryInterval(mHistoryInterval);
+            recorder.setHistoryRetention(mHistoryRetention);
+
+            if (mParallelCopy && mConnectionStr.startsWith("jdbc:postgresql:")) {
+                pooled.mTripUpdateConnection = DriverManager.getConnection(mConnectionStr, mUsername, mPassword);
+                pooled.mVehicleConnection = DriverManager.getConnection(mConnectionStr, mUsername, mPassword);
+                recorder.setParallelConnections(pooled.mTripUpdateConnection, pooled.mVehicleConnection);
+            }
+
+            recorder.startup();
+            pooled.mRecorder = recorder;
+        }
+        catch (SQLException e) {
+            pooled.close();
+            throw e;
+        }
+
+        return pooled;
+    }
+
+    public static class PooledRecorder {
+        private Connection mConnection;
+        private Connection mTripUpdateConnection;
+        private Connection mVehicleConnection;
+        private GtfsRealTimeSqlRecorder mRecorder;
+
+        public GtfsRealTimeSqlRecorder getRecorder() {
+            return mRecorder;
+        }
+
+        private void close() {
+            try {
+                if (mRecorder != null) {
+                    mRecorder.shutdown();
+                }
+            } catch (Exception e) {
+
+            }
+
+            closeQuietly(mConnection);
+            closeQuietly(mTripUpdateConnection);
+            closeQuietly(mVehicleConnection);
+        }
+
+        private static void closeQuietly(Connection connection) {
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (Exception e) {
+
+            }
+        }
+    }
+}
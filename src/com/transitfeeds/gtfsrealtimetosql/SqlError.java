@@ -0,0 +1,78 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.sql.SQLException;
+
+/**
+ * How a failed database operation should be handled.
+ */
+public enum SqlError {
+
+    /**
+     * The operation may succeed if retried on the same connection, e.g. a
+     * serialization failure, deadlock or locked SQLite database.
+     */
+    TRANSIENT,
+
+    /**
+     * The connection is unusable, e.g. the server went away or is failing
+     * over. Retry on a new connection.
+     */
+    CONNECTION,
+
+    /**
+     * The data or statement was rejected. Retrying won't help.
+     */
+    DATA;
+
+    /**
+     * Classifies by SQLSTATE, looking through chained exceptions (such as a
+     * BatchUpdateException's) when the top one has none. Anything that
+     * can't be classified is treated as a lost connection, since
+     * reconnecting is always safe.
+     */
+    public static SqlError classify(SQLException e) {
+        for (SQLException se = e; se != null; se = se.getNextException()) {
+            String state = se.getSQLState();
+
+            if (state != null && state.length() >= 2) {
+                return classify(state);
+            }
+
+            String message = se.getMessage();
+
+            // sqlite-jdbc reports busy and locked databases without a state
+            if (message != null && (message.contains("SQLITE_BUSY") || message.contains("database is locked"))) {
+                return TRANSIENT;
+            }
+        }
+
+        return CONNECTION;
+    }
+
+    private static SqlError classify(String state) {
+        String stateClass = state.substring(0, 2);
+
+        // Connection exception
+        if (stateClass.equals("08")) {
+            return CONNECTION;
+        }
+
+        // Server shutting down or not yet accepting connections, e.g. during failover
+        if (state.equals("57P01") || state.equals("57P02") || state.equals("57P03")) {
+            return CONNECTION;
+        }
+
+        // Aborted transaction, transaction rollback (serialization failure,
+        // deadlock), insufficient resources, lock not available and query cancelled
+        if (stateClass.equals("25") || stateClass.equals("40") || stateClass.equals("53") || state.equals("55P03") || state.equals("57014")) {
+            return TRANSIENT;
+        }
+
+        // Data exception, integrity constraint violation, syntax error or undefined object
+        if (stateClass.equals("22") || stateClass.equals("23") || stateClass.equals("42")) {
+            return DATA;
+        }
+
+        return CONNECTION;
+    }
+}
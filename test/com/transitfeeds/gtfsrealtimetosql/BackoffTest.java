@@ -0,0 +1,67 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BackoffTest {
+
+    private static final int SAMPLES = 200;
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(String.format("%d not in [%d, %d]", value, min, max), value >= min && value <= max);
+    }
+
+    @Test
+    public void delayDoublesUpToMax() {
+        long[] delays = { 100, 200, 400, 800, 1000, 1000, 1000 };
+
+        for (int i = 0; i < SAMPLES; i++) {
+            Backoff backoff = new Backoff(100, 1000);
+
+            for (long delay : delays) {
+                assertBetween(delay - delay / 2, delay, backoff.next());
+            }
+        }
+    }
+
+    @Test
+    public void countsAttemptsUntilReset() {
+        Backoff backoff = new Backoff(100, 1000);
+        backoff.next();
+        backoff.next();
+        backoff.next();
+        assertEquals(3, backoff.getAttempts());
+
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+
+        for (int i = 0; i < SAMPLES; i++) {
+            backoff.reset();
+            assertBetween(50, 100, backoff.next());
+        }
+    }
+
+    @Test
+    public void manyAttemptsDontOverflow() {
+        Backoff backoff = new Backoff(1000, Long.MAX_VALUE / 4);
+        long last = 0;
+
+        for (int i = 0; i < 100; i++) {
+            last = backoff.next();
+            assertTrue(last > 0);
+        }
+
+        assertBetween(Long.MAX_VALUE / 8, Long.MAX_VALUE / 4, last);
+    }
+
+    @Test
+    public void clampsArguments() {
+        Backoff backoff = new Backoff(0, -1);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(1, backoff.next());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BatchInsertTest {
+
+    private RecordingConnection mConnection = new RecordingConnection();
+
+    private BatchInsert create(int rowsPerStatement, int flushRows) throws SQLException {
+        return new BatchInsert(mConnection.getConnection(), "t", "a, b", rowsPerStatement, flushRows);
+    }
+
+    private static void addRows(BatchInsert insert, int rows) throws SQLException {
+        for (int i = 0; i < rows; i++) {
+            insert.setInt(1, i);
+            insert.setString(2, "x");
+            insert.addBatch();
+        }
+    }
+
+    @Test
+    public void singleRowStatementUsesValues() throws SQLException {
+        create(1, 10);
+
+        assertEquals(Arrays.asList("INSERT INTO t (a, b) VALUES (?, ?)"), mConnection.getSql());
+    }
+
+    @Test
+    public void multiRowStatementUsesUnionAll() throws SQLException {
+        create(3, 10);
+
+        assertEquals(Arrays.asList("INSERT INTO t (a, b) SELECT ?, ? UNION ALL SELECT ?, ? UNION ALL SELECT ?, ?"),
+                mConnection.getSql());
+    }
+
+    @Test
+    public void bindsRowsOfAGroupInOrder() throws SQLException {
+        BatchInsert insert = create(2, 10);
+
+        insert.setInt(1, 1);
+        insert.setString(2, null);
+        insert.addBatch();
+        insert.setLong(1, 2);
+        insert.setString(2, "x");
+        insert.addBatch();
+
+        assertEquals(Arrays.asList("setInt(1, 1)", "setNull(2, " + Types.VARCHAR + ")", "setLong(3, 2)", "setString(4, x)", "addBatch()"),
+                mConnection.getCalls(0));
+    }
+
+    @Test
+    public void groupsRowsAndFlushesEveryFlushRows() throws SQLException {
+        BatchInsert insert = create(3, 7);
+        addRows(insert, 20);
+
+        // 6 full groups of 3, sent after rows 9 and 18
+        assertEquals(6, mConnection.count(0, "addBatch()"));
+        assertEquals(2, mConnection.count(0, "executeBatch()"));
+
+        assertEquals(20, insert.executeBatch());
+        assertEquals(2, mConnection.count(0, "executeBatch()"));
+
+        // The last 2 rows go in a statement of their own
+        assertEquals(2, mConnection.getSql().size());
+        assertEquals("INSERT INTO t (a, b) SELECT ?, ? UNION ALL SELECT ?, ?", mConnection.getSql().get(1));
+        assertEquals(Arrays.asList("setInt(1, 18)", "setString(2, x)", "setInt(3, 19)", "setString(4, x)", "executeUpdate()", "close()"),
+                mConnection.getCalls(1));
+    }
+
+    @Test
+    public void executeBatchSendsQueuedGroups() throws SQLException {
+        BatchInsert insert = create(2, 100);
+        addRows(insert, 4);
+
+        assertEquals(0, mConnection.count(0, "executeBatch()"));
+        assertEquals(4, insert.executeBatch());
+        assertEquals(1, mConnection.count(0, "executeBatch()"));
+        assertEquals(1, mConnection.getSql().size());
+
+        // Nothing left to send
+        assertEquals(0, insert.executeBatch());
+        assertEquals(1, mConnection.count(0, "executeBatch()"));
+    }
+
+    @Test
+    public void singleRowInsertsShareOneStatement() throws SQLException {
+        BatchInsert insert = create(1, 2);
+        addRows(insert, 3);
+
+        assertEquals(3, mConnection.count(0, "addBatch()"));
+        assertEquals(1, mConnection.count(0, "executeBatch()"));
+
+        assertEquals(3, insert.executeBatch());
+        assertEquals(2, mConnection.count(0, "executeBatch()"));
+        assertEquals(1, mConnection.getSql().size());
+    }
+
+    @Test
+    public void clearParametersOnlyClearsCurrentRow() throws SQLException {
+        BatchInsert insert = create(2, 10);
+
+        insert.setInt(1, 1);
+        insert.setString(2, "x");
+        insert.addBatch();
+        insert.setInt(1, 2);
+        insert.setString(2, "y");
+        insert.clearParameters();
+        insert.addBatch();
+
+        assertEquals(Arrays.asList("setInt(1, 1)", "setString(2, x)", "setNull(3, " + Types.NULL + ")", "setNull(4, " + Types.NULL + ")", "addBatch()"),
+                mConnection.getCalls(0));
+    }
+}
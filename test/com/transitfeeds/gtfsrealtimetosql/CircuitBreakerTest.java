@@ -0,0 +1,106 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private static final long NOW = 1000000;
+
+    @Test
+    public void closedBreakerAllowsLoads() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000, 3);
+
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allows(0));
+        assertEquals(0, breaker.getRetryAt());
+        assertEquals(0, breaker.getFailures());
+    }
+
+    @Test
+    public void failureHoldsFeedBack() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000, 3);
+
+        assertFalse(breaker.failure(NOW));
+
+        long retryAt = breaker.getRetryAt();
+        assertTrue(retryAt >= NOW + 50 && retryAt <= NOW + 100);
+        assertFalse(breaker.allows(retryAt - 1));
+        assertTrue(breaker.allows(retryAt));
+        assertEquals(1, breaker.getFailures());
+    }
+
+    @Test
+    public void opensAtThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000, 3);
+
+        assertFalse(breaker.failure(NOW));
+        assertFalse(breaker.failure(NOW));
+        assertFalse(breaker.isOpen());
+
+        assertTrue(breaker.failure(NOW));
+        assertTrue(breaker.isOpen());
+
+        // Only the failure that opens it reports doing so
+        assertFalse(breaker.failure(NOW));
+        assertTrue(breaker.isOpen());
+        assertEquals(4, breaker.getFailures());
+    }
+
+    @Test
+    public void openBreakerProbesAtMaxInterval() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000, 3);
+        breaker.failure(NOW);
+        breaker.failure(NOW);
+
+        // The backoff alone would wait at most 400ms after the third failure
+        assertTrue(breaker.failure(NOW));
+        assertEquals(NOW + 1000, breaker.getRetryAt());
+
+        for (int i = 0; i < 10; i++) {
+            long now = NOW + i * 1000;
+            breaker.failure(now);
+            assertEquals(now + 1000, breaker.getRetryAt());
+        }
+    }
+
+    @Test
+    public void successClosesAndResets() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000, 2);
+        breaker.failure(NOW);
+        breaker.failure(NOW);
+
+        assertTrue(breaker.success());
+        assertFalse(breaker.isOpen());
+        assertEquals(0, breaker.getRetryAt());
+        assertEquals(0, breaker.getFailures());
+        assertTrue(breaker.allows(0));
+
+        assertFalse(breaker.success());
+    }
+
+    @Test
+    public void successBeforeThresholdDoesntReportClosing() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000, 3);
+        breaker.failure(NOW);
+
+        assertFalse(breaker.success());
+        assertEquals(0, breaker.getFailures());
+
+        // The count starts over
+        assertFalse(breaker.failure(NOW));
+        assertFalse(breaker.failure(NOW));
+        assertTrue(breaker.failure(NOW));
+    }
+
+    @Test
+    public void thresholdIsAtLeastOne() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 1000, 0);
+
+        assertTrue(breaker.failure(NOW));
+        assertTrue(breaker.isOpen());
+    }
+}
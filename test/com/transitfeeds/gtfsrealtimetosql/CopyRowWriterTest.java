@@ -0,0 +1,225 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class CopyRowWriterTest {
+
+    private static final int HEADER_SIZE = 19;
+
+    private static byte[] flush(CopyRowWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.flush(out);
+
+        return out.toByteArray();
+    }
+
+    private static String text(CopyRowWriter writer) throws IOException {
+        return new String(flush(writer), CopyRowWriter.UTF8);
+    }
+
+    @Test
+    public void textEscapesSpecialCharacters() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",");
+        writer.startRow();
+        writer.add("a,b");
+        writer.add("back\\slash");
+        writer.add("line\nfeed\rreturn");
+        writer.add("tab\tstays");
+        writer.endRow();
+
+        assertEquals("a\\,b,back\\\\slash,line\\nfeed\\rreturn,tab\tstays\n", text(writer));
+    }
+
+    @Test
+    public void textLeavesMultiByteUtf8Alone() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter("\t");
+        writer.startRow();
+        writer.add("Gare de l'Est \u2192 M\u00fcnchen \u4e1c\u4eac");
+        writer.endRow();
+
+        assertEquals("Gare de l'Est \u2192 M\u00fcnchen \u4e1c\u4eac\n", text(writer));
+    }
+
+    @Test
+    public void textWritesNullsAsEmptyColumns() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",");
+        writer.startRow();
+        writer.add(1);
+        writer.addNull(2);
+        writer.add((String) null);
+        writer.add(2);
+        writer.endRow();
+
+        assertEquals("1,,,,2\n", text(writer));
+    }
+
+    @Test
+    public void textWritesNumbers() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",");
+        writer.startRow();
+        writer.add(0);
+        writer.add(-42);
+        writer.add(Integer.MIN_VALUE);
+        writer.add((long) Integer.MAX_VALUE);
+        writer.add(1.5f);
+        writer.add(2.25);
+        writer.endRow();
+
+        assertEquals("0,-42,-2147483648,2147483647,1.5,2.25\n", text(writer));
+    }
+
+    @Test
+    public void textSeparatesRows() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",");
+
+        for (int i = 0; i < 3; i++) {
+            writer.startRow();
+            writer.add(i);
+            writer.add("x");
+            writer.endRow();
+        }
+
+        assertEquals("0,x\n1,x\n2,x\n", text(writer));
+        assertEquals(3, writer.getRowCount());
+    }
+
+    @Test
+    public void binaryStartsWithHeader() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",", true);
+        byte[] bytes = flush(writer);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(expected);
+        out.writeBytes("PGCOPY\n");
+        out.write(new byte[] { (byte) 0xff, '\r', '\n', 0 });
+        out.writeInt(0);
+        out.writeInt(0);
+
+        assertArrayEquals(expected.toByteArray(), bytes);
+        assertEquals(HEADER_SIZE, bytes.length);
+    }
+
+    @Test
+    public void binaryEncodesFields() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",", true);
+        flush(writer);
+
+        writer.startRow();
+        writer.add(-2);
+        writer.addNull();
+        writer.add("h\u00e9");
+        writer.add(1.5f);
+        writer.add(2.5);
+        writer.endRow();
+        writer.finish();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(expected);
+        out.writeShort(5);
+        out.writeInt(4);
+        out.writeInt(-2);
+        out.writeInt(-1);
+        out.writeInt(3);
+        out.write("h\u00e9".getBytes(CopyRowWriter.UTF8));
+        out.writeInt(4);
+        out.writeFloat(1.5f);
+        out.writeInt(4);
+        out.writeFloat(2.5f);
+        out.writeShort(-1);
+
+        assertArrayEquals(expected.toByteArray(), flush(writer));
+    }
+
+    @Test
+    public void binaryWritesEmptyStringsAsNull() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",", true);
+        flush(writer);
+
+        writer.startRow();
+        writer.add("");
+        writer.endRow();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(expected);
+        out.writeShort(1);
+        out.writeInt(-1);
+
+        assertArrayEquals(expected.toByteArray(), flush(writer));
+    }
+
+    @Test
+    public void binaryRejectsValuesOutsideInt4() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",", true);
+        writer.startRow();
+        writer.add(1);
+
+        int length = writer.length();
+
+        try {
+            writer.add(1L << 32);
+            fail("Expected IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+        }
+
+        assertEquals(length, writer.length());
+
+        writer.add((long) Integer.MIN_VALUE);
+        writer.add((long) Integer.MAX_VALUE);
+        writer.endRow();
+
+        assertEquals(length + 16, writer.length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void textRejectsValuesOutsideInt4() {
+        CopyRowWriter writer = new CopyRowWriter(",");
+        writer.startRow();
+        writer.add(Integer.MIN_VALUE - 1L);
+    }
+
+    @Test
+    public void rollbackDiscardsPartialRow() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",");
+        writer.startRow();
+        writer.add(1);
+        writer.endRow();
+
+        writer.mark();
+        writer.startRow();
+        writer.add(2);
+        writer.add("half");
+        writer.rollback();
+
+        writer.startRow();
+        writer.add(3);
+        writer.endRow();
+
+        assertEquals("1\n3\n", text(writer));
+        assertEquals(2, writer.getRowCount());
+    }
+
+    @Test
+    public void growsPastInitialBuffer() throws IOException {
+        CopyRowWriter writer = new CopyRowWriter(",");
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < 100000; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        writer.startRow();
+        writer.add(value.toString());
+        writer.endRow();
+
+        assertEquals(value + "\n", text(writer));
+    }
+}
@@ -0,0 +1,157 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition.CongestionLevel;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
+
+public class CopyTranscoderTest {
+
+    private static final int RECORDED = 1000;
+
+    private CopyTranscoder mTranscoder = new CopyTranscoder();
+    private CopyRowWriter mTuWriter = new CopyRowWriter(",");
+    private CopyRowWriter mStWriter = new CopyRowWriter(",");
+
+    private static String text(CopyRowWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.flush(out);
+
+        return new String(out.toByteArray(), CopyRowWriter.UTF8);
+    }
+
+    private static byte[] entity(TripUpdate.Builder tripUpdate) {
+        return FeedEntity.newBuilder().setId("e").setTripUpdate(tripUpdate).build().toByteArray();
+    }
+
+    private static byte[] entity(VehiclePosition.Builder vehicle) {
+        return FeedEntity.newBuilder().setId("e").setVehicle(vehicle).build().toByteArray();
+    }
+
+    private boolean writeTripUpdate(byte[] data) throws IOException {
+        return mTranscoder.writeTripUpdate(data, 0, data.length, 7, RECORDED, mTuWriter, mStWriter);
+    }
+
+    private boolean writeVehicle(byte[] data) throws IOException {
+        return mTranscoder.writeVehicle(data, 0, data.length, RECORDED, mTuWriter);
+    }
+
+    @Test
+    public void tripUpdateDefaults() throws IOException {
+        TripUpdate.Builder tripUpdate = TripUpdate.newBuilder()
+                .setTrip(TripDescriptor.newBuilder().setTripId("t1"))
+                .addStopTimeUpdate(StopTimeUpdate.newBuilder().setStopId("s1"));
+
+        assertTrue(writeTripUpdate(entity(tripUpdate)));
+
+        assertEquals("7,,,,,t1,,,,,1000\n", text(mTuWriter));
+        assertEquals("7,,,,,,,0,s1,-1\n", text(mStWriter));
+    }
+
+    @Test
+    public void tripUpdateValues() throws IOException {
+        TripUpdate.Builder tripUpdate = TripUpdate.newBuilder()
+                .setTrip(TripDescriptor.newBuilder()
+                        .setTripId("t1")
+                        .setRouteId("r1")
+                        .setStartDate("20261018")
+                        .setStartTime("10:00:00")
+                        .setScheduleRelationship(TripDescriptor.ScheduleRelationship.ADDED))
+                .setVehicle(VehicleDescriptor.newBuilder().setId("v1").setLabel("Bus, 1").setLicensePlate("ABC"))
+                .setTimestamp(1792320000L)
+                .addStopTimeUpdate(StopTimeUpdate.newBuilder()
+                        .setStopId("s1")
+                        .setStopSequence(3)
+                        .setArrival(StopTimeEvent.newBuilder().setTime(1792320060L).setUncertainty(30).setDelay(-5))
+                        .setDeparture(StopTimeEvent.newBuilder().setDelay(10)))
+                .addStopTimeUpdate(StopTimeUpdate.newBuilder()
+                        .setStopSequence(4)
+                        .setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.SKIPPED));
+
+        assertTrue(writeTripUpdate(entity(tripUpdate)));
+
+        assertEquals("7,1792320000,1,20261018,10:00:00,t1,r1,v1,Bus\\, 1,ABC,1000\n", text(mTuWriter));
+        assertEquals("7,1792320060,30,-5,,,10,0,s1,3\n" + "7,,,,,,,1,,4\n", text(mStWriter));
+    }
+
+    @Test
+    public void entityWithoutTripUpdate() throws IOException {
+        VehiclePosition.Builder vehicle = VehiclePosition.newBuilder()
+                .setPosition(Position.newBuilder().setLatitude(1).setLongitude(2));
+
+        assertFalse(writeTripUpdate(entity(vehicle)));
+        assertEquals(0, mTuWriter.length());
+        assertEquals(0, mStWriter.length());
+    }
+
+    @Test
+    public void vehicleDefaults() throws IOException {
+        VehiclePosition.Builder vehicle = VehiclePosition.newBuilder()
+                .setPosition(Position.newBuilder().setLatitude(1.5f).setLongitude(2.5f));
+
+        assertTrue(writeVehicle(entity(vehicle)));
+
+        String expected = String.format("%d,%d,-1,,,,1.5,2.5,,,,,,,,,,,1000\n",
+                CongestionLevel.UNKNOWN_CONGESTION_LEVEL_VALUE, VehicleStopStatus.IN_TRANSIT_TO_VALUE);
+
+        assertEquals(expected, text(mTuWriter));
+    }
+
+    @Test
+    public void vehicleValues() throws IOException {
+        VehiclePosition.Builder vehicle = VehiclePosition.newBuilder()
+                .setPosition(Position.newBuilder().setLatitude(1.5f).setLongitude(2.5f).setBearing(90).setSpeed(12.5f).setOdometer(1000.5))
+                .setTrip(TripDescriptor.newBuilder().setTripId("t1").setRouteId("r1"))
+                .setVehicle(VehicleDescriptor.newBuilder().setId("v1"))
+                .setCurrentStopSequence(4)
+                .setStopId("s1")
+                .setCurrentStatus(VehicleStopStatus.STOPPED_AT)
+                .setCongestionLevel(CongestionLevel.CONGESTION)
+                .setTimestamp(1792320000L);
+
+        assertTrue(writeVehicle(entity(vehicle)));
+
+        String expected = String.format("%d,%d,4,90.0,1000.5,12.5,1.5,2.5,s1,1792320000,,,,t1,r1,v1,,,1000\n",
+                CongestionLevel.CONGESTION_VALUE, VehicleStopStatus.STOPPED_AT_VALUE);
+
+        assertEquals(expected, text(mTuWriter));
+    }
+
+    @Test
+    public void vehicleWithoutPosition() throws IOException {
+        VehiclePosition.Builder vehicle = VehiclePosition.newBuilder()
+                .setVehicle(VehicleDescriptor.newBuilder().setId("v1"));
+
+        assertFalse(writeVehicle(entity(vehicle)));
+        assertEquals(0, mTuWriter.length());
+    }
+
+    @Test
+    public void keys() throws IOException {
+        byte[] tripUpdate = entity(TripUpdate.newBuilder().setTrip(TripDescriptor.newBuilder().setTripId("t1")));
+        byte[] vehicle = entity(VehiclePosition.newBuilder().setVehicle(VehicleDescriptor.newBuilder().setId("v1")));
+        byte[] noKey = entity(TripUpdate.newBuilder().setTrip(TripDescriptor.newBuilder().setTripId("")));
+
+        assertEquals("t1", mTranscoder.getTripId(tripUpdate, 0, tripUpdate.length));
+        assertNull(mTranscoder.getVehicleId(tripUpdate, 0, tripUpdate.length));
+        assertEquals("v1", mTranscoder.getVehicleId(vehicle, 0, vehicle.length));
+        assertNull(mTranscoder.getTripId(vehicle, 0, vehicle.length));
+        assertNull(mTranscoder.getTripId(noKey, 0, noKey.length));
+    }
+}
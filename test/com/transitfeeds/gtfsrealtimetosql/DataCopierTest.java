@@ -0,0 +1,114 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+public class DataCopierTest {
+
+    private static void addRow(DataCopier copier, int id, String name) throws SQLException, IOException {
+        DataCopierRow row = copier.newRow();
+        row.add(id);
+        row.add(name);
+        copier.add(row);
+    }
+
+    @Test
+    public void rollbackDiscardsOpenRow() throws SQLException, IOException {
+        DataCopier copier = new DataCopier(",");
+        addRow(copier, 1, "a");
+
+        DataCopierRow row = copier.newRow();
+        row.add(2);
+        copier.rollback();
+
+        addRow(copier, 3, "c");
+
+        RecordingCopyIn copyIn = new RecordingCopyIn();
+        copier.write(copyIn);
+
+        assertEquals("1,a\n3,c\n", copyIn.getText());
+        assertEquals(2, copier.size());
+    }
+
+    @Test
+    public void rollbackKeepsAddedRows() throws SQLException, IOException {
+        DataCopier copier = new DataCopier(",");
+        addRow(copier, 1, "a");
+        copier.rollback();
+        copier.rollback();
+
+        RecordingCopyIn copyIn = new RecordingCopyIn();
+        copier.write(copyIn);
+
+        assertEquals("1,a\n", copyIn.getText());
+    }
+
+    @Test
+    public void liveCopyReceivesRowsOnFlush() throws SQLException, IOException {
+        RecordingCopyIn copyIn = new RecordingCopyIn();
+        DataCopier copier = new DataCopier(copyIn, ",");
+        addRow(copier, 1, "a");
+
+        DataCopierRow row = copier.newRow();
+        row.add(2);
+        copier.rollback();
+
+        copier.flush();
+
+        assertEquals("1,a\n", copyIn.getText());
+    }
+
+    @Test
+    public void bufferedRowsSurviveSpooling() throws SQLException, IOException {
+        DataCopier copier = new DataCopier(",");
+        StringBuilder expected = new StringBuilder();
+
+        // Well past the flush size, so earlier rows are spooled to disk
+        for (int i = 0; i < 20000; i++) {
+            addRow(copier, i, "row");
+            expected.append(i).append(",row\n");
+        }
+
+        RecordingCopyIn copyIn = new RecordingCopyIn();
+        copier.write(copyIn);
+
+        assertEquals(expected.toString(), copyIn.getText());
+    }
+
+    @Test
+    public void emptyLiveCopyFlushesNothing() throws SQLException {
+        RecordingCopyIn copyIn = new RecordingCopyIn();
+        DataCopier copier = new DataCopier(copyIn, ",");
+
+        copier.flush();
+
+        assertEquals(0, copyIn.getData().length);
+    }
+
+    @Test
+    public void emptyBinaryLiveCopySendsHeaderAndTrailer() throws SQLException, IOException {
+        RecordingCopyIn copyIn = new RecordingCopyIn();
+        DataCopier copier = new DataCopier(copyIn, ",");
+        copier.setBinary(true);
+
+        copier.flush();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(expected);
+        out.writeBytes("PGCOPY\n");
+        out.write(new byte[] { (byte) 0xff, '\r', '\n', 0 });
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeShort(-1);
+
+        assertArrayEquals(expected.toByteArray(), copyIn.getData());
+        assertEquals(0, copier.size());
+    }
+}
@@ -0,0 +1,166 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EntityDiffTest {
+
+    /**
+     * Runs one cycle that ends in commit().
+     */
+    private static void record(EntityDiff diff, boolean full, String[] keys, long[] fingerprints) {
+        diff.start(full);
+
+        for (int i = 0; i < keys.length; i++) {
+            diff.add(keys[i], fingerprints[i]);
+        }
+
+        diff.finish();
+        diff.commit();
+    }
+
+    private static List<String> sorted(List<String> keys) {
+        Collections.sort(keys);
+        return keys;
+    }
+
+    @Test
+    public void invalidUntilFirstCommit() {
+        EntityDiff diff = new EntityDiff();
+        assertFalse(diff.isValid());
+
+        diff.start(true);
+        diff.add("a", 1);
+        diff.finish();
+        assertFalse(diff.isValid());
+
+        diff.commit();
+        assertTrue(diff.isValid());
+    }
+
+    @Test
+    public void fullRewriteChangesEveryKey() {
+        EntityDiff diff = new EntityDiff();
+        record(diff, true, new String[] { "a", "b" }, new long[] { 1, 2 });
+
+        diff.start(true);
+        diff.add("a", 1);
+        diff.add("b", 2);
+
+        assertTrue(diff.isChanged("a"));
+        assertTrue(diff.isChanged("b"));
+        assertEquals(2, diff.getChangedCount());
+        assertTrue(diff.getStaleKeys().isEmpty());
+    }
+
+    @Test
+    public void diffFindsChangedAddedAndRemovedKeys() {
+        EntityDiff diff = new EntityDiff();
+        record(diff, true, new String[] { "same", "changed", "removed" }, new long[] { 1, 2, 3 });
+
+        diff.start(false);
+        diff.add("same", 1);
+        diff.add("changed", 20);
+        diff.add("added", 4);
+
+        assertFalse(diff.isChanged("same"));
+        assertTrue(diff.isChanged("changed"));
+        assertTrue(diff.isChanged("added"));
+        assertEquals(2, diff.getChangedCount());
+        assertEquals(Arrays.asList("changed", "removed"), sorted(diff.getStaleKeys()));
+    }
+
+    @Test
+    public void entitiesSharingAKeyChangeTogether() {
+        EntityDiff diff = new EntityDiff();
+        record(diff, true, new String[] { "a", "a" }, new long[] { 1, 2 });
+
+        diff.start(false);
+        diff.add("a", 1);
+        diff.add("a", 2);
+        assertFalse(diff.isChanged("a"));
+
+        diff.start(false);
+        diff.add("a", 1);
+        assertTrue(diff.isChanged("a"));
+        assertEquals(Arrays.asList("a"), diff.getStaleKeys());
+    }
+
+    @Test
+    public void nullKeyIsTrackedLikeAnyOther() {
+        EntityDiff diff = new EntityDiff();
+        record(diff, true, new String[] { null, "a" }, new long[] { 1, 2 });
+
+        diff.start(false);
+        diff.add("a", 2);
+
+        assertEquals(1, diff.getStaleKeys().size());
+        assertEquals(null, diff.getStaleKeys().get(0));
+    }
+
+    @Test
+    public void rollbackKeepsCommittedFingerprints() {
+        EntityDiff diff = new EntityDiff();
+        record(diff, true, new String[] { "a" }, new long[] { 1 });
+
+        diff.start(false);
+        diff.add("a", 2);
+        diff.finish();
+        diff.rollback();
+
+        diff.start(false);
+        diff.add("a", 1);
+        assertFalse(diff.isChanged("a"));
+        assertTrue(diff.isValid());
+    }
+
+    @Test
+    public void laterReaderInCycleDiffsAgainstPending() {
+        EntityDiff diff = new EntityDiff();
+        record(diff, true, new String[] { "a" }, new long[] { 1 });
+
+        diff.start(false);
+        diff.add("b", 2);
+        diff.finish();
+
+        // The first reader's rows replaced "a" in this transaction already
+        diff.start(false);
+        diff.add("b", 2);
+        assertFalse(diff.isChanged("b"));
+        assertTrue(diff.getStaleKeys().isEmpty());
+    }
+
+    @Test
+    public void invalidateForcesRewrite() {
+        EntityDiff diff = new EntityDiff();
+        record(diff, true, new String[] { "a" }, new long[] { 1 });
+
+        diff.invalidate();
+        assertFalse(diff.isValid());
+
+        diff.start(false);
+        diff.add("a", 1);
+        assertTrue(diff.isChanged("a"));
+    }
+
+    @Test
+    public void incrementalStateIsShared() {
+        IncrementalState state = new IncrementalState();
+
+        assertSame(state.getTripUpdateDiff(), state.getTripUpdateDiff());
+        assertEquals(1, state.nextUpdateId());
+        assertEquals(2, state.nextUpdateId());
+        assertEquals(2, state.getLastUpdateId());
+
+        state.resetUpdateId();
+        assertEquals(1, state.nextUpdateId());
+    }
+}
@@ -0,0 +1,267 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+
+public class FeedSpoolTest {
+
+    private File mFile;
+    private File mPositionFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("spool", ".bin");
+        mFile.delete();
+        mPositionFile = new File(mFile.getPath() + ".pos");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        mPositionFile.delete();
+    }
+
+    private static FeedMessageReader reader(String tripId) throws IOException {
+        byte[] data = FeedMessage.newBuilder()
+                .setHeader(FeedHeader.newBuilder().setGtfsRealtimeVersion("1.0"))
+                .addEntity(FeedEntity.newBuilder().setId("e").setTripUpdate(
+                        TripUpdate.newBuilder().setTrip(TripDescriptor.newBuilder().setTripId(tripId))))
+                .build().toByteArray();
+
+        return new FeedMessageReader(data, data.length);
+    }
+
+    private static long size(List<FeedMessageReader> readers) {
+        long size = 24;
+
+        for (FeedMessageReader reader : readers) {
+            size += 4 + reader.getLength();
+        }
+
+        return size;
+    }
+
+    private static void assertSameData(List<FeedMessageReader> expected, List<FeedMessageReader> actual) {
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(Arrays.copyOf(expected.get(i).getData(), expected.get(i).getLength()),
+                    Arrays.copyOf(actual.get(i).getData(), actual.get(i).getLength()));
+        }
+    }
+
+    @Test
+    public void emptySpool() throws IOException {
+        FeedSpool spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+
+        assertTrue(spool.isEmpty());
+        assertEquals(0, spool.getSize());
+        assertNull(spool.peek());
+    }
+
+    @Test
+    public void cyclesRoundTripInOrder() throws IOException {
+        FeedSpool spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        List<FeedMessageReader> first = Arrays.asList(reader("t1"), reader("t2"));
+        List<FeedMessageReader> second = Arrays.asList(reader("t3"));
+
+        assertTrue(spool.append(1000, first));
+        assertTrue(spool.append(2000, second));
+        assertEquals(size(first) + size(second), spool.getSize());
+
+        FeedSpool.Cycle cycle = spool.peek();
+        assertSameData(first, cycle.getReaders());
+        assertEquals(1000, cycle.getReaders().get(0).getFetchedTime());
+        assertEquals(1000, cycle.getReaders().get(1).getFetchedTime());
+        assertEquals("t2", cycle.getReaders().get(1).toFeedMessage().getEntity(0).getTripUpdate().getTrip().getTripId());
+        spool.remove();
+        assertEquals(size(second), spool.getSize());
+
+        cycle = spool.peek();
+        assertSameData(second, cycle.getReaders());
+        assertEquals(2000, cycle.getReaders().get(0).getFetchedTime());
+        spool.remove();
+
+        assertTrue(spool.isEmpty());
+        assertNull(spool.peek());
+        assertFalse(mFile.exists());
+        assertFalse(mPositionFile.exists());
+    }
+
+    @Test
+    public void peekWithoutRemoveReturnsSameCycle() throws IOException {
+        FeedSpool spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        spool.append(1000, Arrays.asList(reader("t1")));
+        spool.append(1000, Arrays.asList(reader("t1")));
+
+        long id = spool.peek().getId();
+        assertEquals(id, spool.peek().getId());
+
+        // Identical cycles still get their own ids
+        spool.remove();
+        assertFalse(id == spool.peek().getId());
+    }
+
+    @Test
+    public void removeWithoutPeekDoesNothing() throws IOException {
+        FeedSpool spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        spool.append(1000, Arrays.asList(reader("t1")));
+
+        spool.remove();
+        assertFalse(spool.isEmpty());
+
+        spool.peek();
+        spool.remove();
+        spool.remove();
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void positionSurvivesReopen() throws IOException {
+        FeedSpool spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        spool.append(1000, Arrays.asList(reader("t1")));
+        spool.append(2000, Arrays.asList(reader("t2")));
+        spool.append(3000, Arrays.asList(reader("t3")));
+
+        spool.peek();
+        spool.remove();
+        long id = spool.peek().getId();
+
+        // Reopening before the second cycle is removed hands it out again
+        spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        FeedSpool.Cycle cycle = spool.peek();
+        assertEquals(id, cycle.getId());
+        assertEquals(2000, cycle.getReaders().get(0).getFetchedTime());
+        spool.remove();
+
+        spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        assertEquals(3000, spool.peek().getReaders().get(0).getFetchedTime());
+    }
+
+    @Test
+    public void truncatedCycleIsDiscarded() throws IOException {
+        FeedSpool spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        spool.append(1000, Arrays.asList(reader("t1")));
+        spool.append(2000, Arrays.asList(reader("t2"), reader("t3")));
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+
+        try {
+            file.setLength(file.length() - 10);
+        }
+        finally {
+            file.close();
+        }
+
+        assertEquals(1000, spool.peek().getReaders().get(0).getFetchedTime());
+        spool.remove();
+
+        assertNull(spool.peek());
+        assertTrue(spool.isEmpty());
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void truncatedHeaderIsDiscarded() throws IOException {
+        FeedSpool spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        spool.append(1000, Arrays.asList(reader("t1")));
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+
+        try {
+            file.setLength(10);
+        }
+        finally {
+            file.close();
+        }
+
+        assertNull(spool.peek());
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptSpoolThrows() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+
+        try {
+            out.write(new byte[64]);
+        }
+        finally {
+            out.close();
+        }
+
+        new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES).peek();
+    }
+
+    @Test
+    public void fullSpoolRejectsCycle() throws IOException {
+        List<FeedMessageReader> readers = Arrays.asList(reader("t1"));
+        FeedSpool spool = new FeedSpool(mFile, size(readers) * 2);
+
+        assertTrue(spool.append(1000, readers));
+        assertTrue(spool.append(2000, readers));
+        assertFalse(spool.append(3000, readers));
+        assertEquals(size(readers) * 2, spool.getSize());
+
+        // An empty cycle still needs room for its header
+        assertFalse(spool.append(3000, new ArrayList<FeedMessageReader>()));
+    }
+
+    @Test
+    public void clearDiscardsEverything() throws IOException {
+        FeedSpool spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        spool.append(1000, Arrays.asList(reader("t1")));
+        spool.append(2000, Arrays.asList(reader("t2")));
+        spool.peek();
+        spool.remove();
+
+        spool.clear();
+
+        assertTrue(spool.isEmpty());
+        assertFalse(mFile.exists());
+        assertFalse(mPositionFile.exists());
+
+        assertTrue(spool.append(3000, Arrays.asList(reader("t3"))));
+        assertEquals(3000, spool.peek().getReaders().get(0).getFetchedTime());
+    }
+
+    @Test
+    public void stalePositionFileIsIgnored() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mPositionFile));
+
+        try {
+            out.writeLong(1000);
+        }
+        finally {
+            out.close();
+        }
+
+        FeedSpool spool = new FeedSpool(mFile, FeedSpool.DEFAULT_MAX_BYTES);
+        assertFalse(mPositionFile.exists());
+
+        spool.append(1000, Arrays.asList(reader("t1")));
+        assertEquals(1000, spool.peek().getReaders().get(0).getFetchedTime());
+    }
+}
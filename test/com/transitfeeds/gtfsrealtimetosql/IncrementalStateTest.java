@@ -0,0 +1,219 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+import org.postgresql.core.BaseConnection;
+
+public class IncrementalStateTest {
+
+    private static final int CYCLES = 200;
+
+    private IncrementalState mState = new IncrementalState();
+
+    /**
+     * Answers every call with a default value, so recorders can begin,
+     * commit and roll back cycles without a server.
+     */
+    private static final InvocationHandler DEFAULTS = new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            Class<?> type = method.getReturnType();
+
+            if (type == PreparedStatement.class) {
+                return Proxy.newProxyInstance(IncrementalStateTest.class.getClassLoader(), new Class<?>[] { PreparedStatement.class }, this);
+            }
+            else if (type == boolean.class) {
+                return false;
+            }
+            else if (type == int.class) {
+                return 0;
+            }
+            else if (type == long.class) {
+                return 0L;
+            }
+
+            return null;
+        }
+    };
+
+    private static Connection newConnection() {
+        return (Connection) Proxy.newProxyInstance(IncrementalStateTest.class.getClassLoader(), new Class<?>[] { BaseConnection.class }, DEFAULTS);
+    }
+
+    private GtfsRealTimeSqlRecorder newRecorder(boolean incremental) {
+        GtfsRealTimeSqlRecorder recorder = new GtfsRealTimeSqlRecorder(Logger.getAnonymousLogger(), newConnection());
+        recorder.setIncremental(incremental);
+        recorder.setIncrementalState(mState);
+
+        return recorder;
+    }
+
+    /**
+     * Starts begin() on another thread.
+     *
+     * @return counted down once begin() returns
+     */
+    private static CountDownLatch beginAsync(final GtfsRealTimeSqlRecorder recorder) {
+        final CountDownLatch begun = new CountDownLatch(1);
+
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    recorder.begin();
+                    begun.countDown();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+
+        thread.setDaemon(true);
+        thread.start();
+
+        return begun;
+    }
+
+    @Test
+    public void concurrentRecordersTakeTurns() throws Exception {
+        final AtomicInteger inCycle = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 2; t++) {
+            final GtfsRealTimeSqlRecorder recorder = newRecorder(true);
+            final String feed = "feed" + t;
+
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < CYCLES; i++) {
+                            recorder.begin();
+
+                            if (inCycle.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+
+                            // What record() does with the shared state
+                            EntityDiff diff = mState.getTripUpdateDiff();
+                            diff.start(!diff.isValid());
+                            diff.add(feed, i);
+                            diff.isChanged(feed);
+                            diff.getStaleKeys();
+                            mState.nextUpdateId();
+                            Thread.yield();
+                            diff.finish();
+
+                            inCycle.decrementAndGet();
+
+                            if (i % 10 == 0) {
+                                recorder.rollback();
+                            }
+                            else {
+                                recorder.commit();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join(30000);
+            assertFalse(thread.isAlive());
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(0, overlaps.get());
+        assertEquals(CYCLES * 2, mState.getLastUpdateId());
+    }
+
+    @Test
+    public void beginWaitsForOtherRecorderToCommit() throws Exception {
+        GtfsRealTimeSqlRecorder first = newRecorder(true);
+        GtfsRealTimeSqlRecorder second = newRecorder(true);
+
+        first.begin();
+        CountDownLatch begun = beginAsync(second);
+        assertFalse(begun.await(200, TimeUnit.MILLISECONDS));
+
+        first.commit();
+        assertTrue(begun.await(5, TimeUnit.SECONDS));
+        second.commit();
+    }
+
+    @Test
+    public void rollbackReleasesCycle() throws Exception {
+        GtfsRealTimeSqlRecorder first = newRecorder(true);
+        GtfsRealTimeSqlRecorder second = newRecorder(true);
+
+        first.begin();
+        CountDownLatch begun = beginAsync(second);
+        assertFalse(begun.await(200, TimeUnit.MILLISECONDS));
+
+        first.rollback();
+        assertTrue(begun.await(5, TimeUnit.SECONDS));
+        second.rollback();
+    }
+
+    @Test
+    public void shutdownReleasesCycle() throws Exception {
+        GtfsRealTimeSqlRecorder first = newRecorder(true);
+        GtfsRealTimeSqlRecorder second = newRecorder(true);
+
+        first.begin();
+        first.shutdown();
+
+        assertTrue(beginAsync(second).await(5, TimeUnit.SECONDS));
+        second.commit();
+    }
+
+    @Test
+    public void beginTwiceHoldsOneLock() throws Exception {
+        GtfsRealTimeSqlRecorder first = newRecorder(true);
+        GtfsRealTimeSqlRecorder second = newRecorder(true);
+
+        first.begin();
+        first.begin();
+        first.commit();
+
+        assertTrue(beginAsync(second).await(5, TimeUnit.SECONDS));
+        second.commit();
+    }
+
+    @Test
+    public void nonIncrementalRecordersDontWait() throws Exception {
+        GtfsRealTimeSqlRecorder first = newRecorder(false);
+        GtfsRealTimeSqlRecorder second = newRecorder(false);
+
+        first.begin();
+        assertTrue(beginAsync(second).await(5, TimeUnit.SECONDS));
+
+        first.commit();
+        second.commit();
+    }
+}
@@ -0,0 +1,89 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Connection that only prepares statements, recording their SQL and the
+ * calls made on them so tests can run without a database.
+ */
+class RecordingConnection {
+
+    private List<String> mSql = new ArrayList<String>();
+    private List<List<String>> mCalls = new ArrayList<List<String>>();
+
+    private Connection mConnection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[] { Connection.class }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("prepareStatement")) {
+                        return prepare((String) args[0]);
+                    }
+
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+    public Connection getConnection() {
+        return mConnection;
+    }
+
+    public List<String> getSql() {
+        return mSql;
+    }
+
+    /**
+     * @return the calls made on the index'th statement prepared, e.g.
+     *         "setInt(1, 5)" or "addBatch()"
+     */
+    public List<String> getCalls(int index) {
+        return mCalls.get(index);
+    }
+
+    public int count(int index, String call) {
+        int count = 0;
+
+        for (String c : mCalls.get(index)) {
+            if (c.equals(call)) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private PreparedStatement prepare(String sql) {
+        final List<String> calls = new ArrayList<String>();
+
+        mSql.add(sql);
+        mCalls.add(calls);
+
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        StringBuilder call = new StringBuilder(method.getName()).append('(');
+
+                        for (int i = 0; args != null && i < args.length; i++) {
+                            call.append(i == 0 ? "" : ", ").append(args[i]);
+                        }
+
+                        calls.add(call.append(')').toString());
+
+                        if (method.getName().equals("executeBatch")) {
+                            return new int[0];
+                        }
+                        else if (method.getName().equals("executeUpdate")) {
+                            return 0;
+                        }
+
+                        return null;
+                    }
+                });
+    }
+}
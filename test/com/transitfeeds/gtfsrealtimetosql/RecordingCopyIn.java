@@ -0,0 +1,67 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import java.io.ByteArrayOutputStream;
+
+import org.postgresql.copy.CopyIn;
+
+/**
+ * Collects the bytes written to a COPY so tests can run without a server.
+ */
+class RecordingCopyIn implements CopyIn {
+
+    private ByteArrayOutputStream mData = new ByteArrayOutputStream();
+    private boolean mActive = true;
+
+    public byte[] getData() {
+        return mData.toByteArray();
+    }
+
+    public String getText() {
+        return new String(mData.toByteArray(), CopyRowWriter.UTF8);
+    }
+
+    @Override
+    public void writeToCopy(byte[] buf, int off, int siz) {
+        mData.write(buf, off, siz);
+    }
+
+    @Override
+    public void flushCopy() {
+    }
+
+    @Override
+    public long endCopy() {
+        mActive = false;
+        return 0;
+    }
+
+    @Override
+    public int getFieldCount() {
+        return 0;
+    }
+
+    @Override
+    public int getFormat() {
+        return 0;
+    }
+
+    @Override
+    public int getFieldFormat(int field) {
+        return 0;
+    }
+
+    @Override
+    public boolean isActive() {
+        return mActive;
+    }
+
+    @Override
+    public void cancelCopy() {
+        mActive = false;
+    }
+
+    @Override
+    public long getHandledRowCount() {
+        return 0;
+    }
+}
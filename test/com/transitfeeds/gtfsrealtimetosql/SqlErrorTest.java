@@ -0,0 +1,73 @@
+package com.transitfeeds.gtfsrealtimetosql;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+public class SqlErrorTest {
+
+    private static SqlError classify(String state) {
+        return SqlError.classify(new SQLException("failed", state));
+    }
+
+    @Test
+    public void connectionStates() {
+        assertEquals(SqlError.CONNECTION, classify("08000"));
+        assertEquals(SqlError.CONNECTION, classify("08006"));
+        assertEquals(SqlError.CONNECTION, classify("57P01"));
+        assertEquals(SqlError.CONNECTION, classify("57P02"));
+        assertEquals(SqlError.CONNECTION, classify("57P03"));
+    }
+
+    @Test
+    public void transientStates() {
+        assertEquals(SqlError.TRANSIENT, classify("25P02"));
+        assertEquals(SqlError.TRANSIENT, classify("40001"));
+        assertEquals(SqlError.TRANSIENT, classify("40P01"));
+        assertEquals(SqlError.TRANSIENT, classify("53300"));
+        assertEquals(SqlError.TRANSIENT, classify("55P03"));
+        assertEquals(SqlError.TRANSIENT, classify("57014"));
+    }
+
+    @Test
+    public void dataStates() {
+        assertEquals(SqlError.DATA, classify("22001"));
+        assertEquals(SqlError.DATA, classify("23505"));
+        assertEquals(SqlError.DATA, classify("42P01"));
+    }
+
+    @Test
+    public void unknownStatesAreConnectionErrors() {
+        assertEquals(SqlError.CONNECTION, classify(null));
+        assertEquals(SqlError.CONNECTION, classify(""));
+        assertEquals(SqlError.CONNECTION, classify("X"));
+        assertEquals(SqlError.CONNECTION, classify("XX000"));
+        assertEquals(SqlError.CONNECTION, classify("55000"));
+    }
+
+    @Test
+    public void lockedSqliteDatabaseIsTransient() {
+        assertEquals(SqlError.TRANSIENT, SqlError.classify(new SQLException("[SQLITE_BUSY] The database file is locked")));
+        assertEquals(SqlError.TRANSIENT, SqlError.classify(new SQLException("database is locked")));
+        assertEquals(SqlError.CONNECTION, SqlError.classify(new SQLException("database disk image is malformed")));
+    }
+
+    @Test
+    public void usesChainedStateWhenTopHasNone() {
+        BatchUpdateException e = new BatchUpdateException("Batch entry 0 was aborted", new int[0]);
+        e.setNextException(new SQLException("duplicate key", "23505"));
+
+        assertEquals(SqlError.DATA, SqlError.classify(e));
+    }
+
+    @Test
+    public void topStateWinsOverChained() {
+        SQLException e = new SQLException("connection lost", "08006");
+        e.setNextException(new SQLException("duplicate key", "23505"));
+
+        assertEquals(SqlError.CONNECTION, SqlError.classify(e));
+    }
+}